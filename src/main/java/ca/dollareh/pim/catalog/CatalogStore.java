@@ -0,0 +1,1049 @@
+package ca.dollareh.pim.catalog;
+
+import ca.dollareh.pim.model.Product;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Catalog of a Product Source, kept in an embedded H2 database.
+ * Holds the extracted products with their category paths, the enriched products
+ * and the ids they were exported under, indexed by code, UPC and category path.
+ */
+public class CatalogStore implements AutoCloseable {
+
+    /**
+     * Rows written per transaction by the batch writes.
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Outcome of saving an extracted product.
+     */
+    public enum Change {
+        NEW, MODIFIED, UNCHANGED
+    }
+
+    /**
+     * @param productId id of the product in the export target
+     * @param fingerprint 64 bit hash of the last exported payload
+     */
+    public record Exported(Long productId, long fingerprint) {
+    }
+
+    /**
+     * Enriched product as listed under a category path.
+     * @param productId id of the product in the export target, null if it was never exported
+     */
+    public record CatalogRow(Product product, String categoryPath, Long productId) {
+    }
+
+    /**
+     * Extracted product and the category path it was found under.
+     */
+    public record Discovery(Product product, String categoryPath) {
+    }
+
+    /**
+     * SKU of a crawl, to be fetched under a category path.
+     */
+    public record CrawlSku(String code, String categoryPath) {
+    }
+
+    /**
+     * Categories and SKUs of a crawl still to be fetched.
+     */
+    public record Frontier(List<String> categoryPaths, List<CrawlSku> skus) {
+    }
+
+    private static final String[] SCHEMA = {
+            """
+            CREATE TABLE IF NOT EXISTS product (
+              code VARCHAR PRIMARY KEY,
+              upc BIGINT,
+              json CLOB NOT NULL,
+              fingerprint BIGINT NOT NULL
+            )""",
+            "CREATE INDEX IF NOT EXISTS product_upc ON product(upc)",
+            """
+            CREATE TABLE IF NOT EXISTS product_category (
+              code VARCHAR NOT NULL,
+              path VARCHAR NOT NULL,
+              PRIMARY KEY (code, path)
+            )""",
+            "CREATE INDEX IF NOT EXISTS product_category_path ON product_category(path)",
+            """
+            CREATE TABLE IF NOT EXISTS enriched_product (
+              code VARCHAR PRIMARY KEY,
+              upc BIGINT,
+              json CLOB NOT NULL
+            )""",
+            "CREATE INDEX IF NOT EXISTS enriched_product_upc ON enriched_product(upc)",
+            """
+            CREATE TABLE IF NOT EXISTS exported_product (
+              code VARCHAR PRIMARY KEY,
+              product_id BIGINT NOT NULL,
+              fingerprint BIGINT NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS exported_image (
+              product_id BIGINT NOT NULL,
+              hash VARCHAR NOT NULL,
+              image_id BIGINT NOT NULL,
+              PRIMARY KEY (product_id, hash)
+            )""",
+            // Products whose images are tracked in exported_image, even while none of them is uploaded
+            """
+            CREATE TABLE IF NOT EXISTS exported_image_product (
+              product_id BIGINT PRIMARY KEY
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS crawl (
+              id VARCHAR PRIMARY KEY,
+              started TIMESTAMP NOT NULL,
+              completed TIMESTAMP
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS crawl_category (
+              crawl_id VARCHAR NOT NULL,
+              path VARCHAR NOT NULL,
+              done BOOLEAN NOT NULL,
+              attempts INT NOT NULL DEFAULT 0,
+              abandoned BOOLEAN NOT NULL DEFAULT FALSE,
+              PRIMARY KEY (crawl_id, path)
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS crawl_sku (
+              crawl_id VARCHAR NOT NULL,
+              code VARCHAR NOT NULL,
+              path VARCHAR NOT NULL,
+              done BOOLEAN NOT NULL,
+              attempts INT NOT NULL DEFAULT 0,
+              abandoned BOOLEAN NOT NULL DEFAULT FALSE,
+              PRIMARY KEY (crawl_id, code, path)
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS listing_card (
+              code VARCHAR PRIMARY KEY,
+              fingerprint BIGINT NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS transform_product (
+              code VARCHAR PRIMARY KEY,
+              json CLOB NOT NULL
+            )"""
+    };
+
+    private static final String MERGE_PRODUCT =
+            "MERGE INTO product (code, upc, json, fingerprint) KEY (code) VALUES (?, ?, ?, ?)";
+
+    private static final String MERGE_PRODUCT_CATEGORY =
+            "MERGE INTO product_category (code, path) KEY (code, path) VALUES (?, ?)";
+
+    final Logger logger = LoggerFactory.getLogger(CatalogStore.class);
+
+    private final JdbcConnectionPool connectionPool;
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Fingerprints and category paths of the extracted products, loaded on first save.
+     */
+    private volatile Manifest manifest;
+
+    /**
+     * @param fingerprints 64 bit hash of the product JSON, by code
+     * @param categoryPaths category paths, by code
+     */
+    private record Manifest(Map<String, Long> fingerprints, Map<String, Set<String>> categoryPaths) {
+    }
+
+    /**
+     * Opens (or creates) the database.
+     * @param databasePath path of the database, without the .mv.db extension
+     */
+    public CatalogStore(final Path databasePath) {
+        databasePath.toAbsolutePath().getParent().toFile().mkdirs();
+
+        connectionPool = JdbcConnectionPool.create("jdbc:h2:file:" + databasePath.toAbsolutePath(), "sa", "");
+
+        objectMapper = new ObjectMapper();
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to open catalog " + databasePath, e);
+        }
+    }
+
+    /**
+     * @return true when nothing was extracted or enriched yet
+     */
+    public boolean isEmpty() {
+        return count("SELECT COUNT(*) FROM product") == 0
+                && count("SELECT COUNT(*) FROM enriched_product") == 0;
+    }
+
+    /**
+     * Saves an extracted product and the category path it was found under.
+     * Changes are detected against the fingerprint manifest, so an unchanged product in a known
+     * category is not read nor written. Otherwise the product and its new category path are
+     * written in one transaction.
+     * @param product
+     * @param categoryPath
+     * @return whether the product is new, modified or unchanged
+     */
+    public Change saveProduct(final Product product, final String categoryPath) {
+        String json = toJson(product);
+        long fingerprint = fingerprint(json);
+
+        Manifest manifest = manifest();
+
+        Long previousFingerprint = manifest.fingerprints().put(product.code(), fingerprint);
+
+        Change change = previousFingerprint == null ? Change.NEW
+                : previousFingerprint == fingerprint ? Change.UNCHANGED : Change.MODIFIED;
+
+        boolean newCategoryPath = manifest.categoryPaths()
+                .computeIfAbsent(product.code(), code -> ConcurrentHashMap.newKeySet())
+                .add(categoryPath);
+
+        if (change == Change.UNCHANGED && !newCategoryPath) {
+            return change;
+        }
+
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                if (change != Change.UNCHANGED) {
+                    try (PreparedStatement merge = connection.prepareStatement(MERGE_PRODUCT)) {
+                        bindProduct(merge, product, json);
+                        merge.setLong(4, fingerprint);
+                        merge.executeUpdate();
+                    }
+                }
+
+                if (newCategoryPath) {
+                    try (PreparedStatement merge = connection.prepareStatement(MERGE_PRODUCT_CATEGORY)) {
+                        merge.setString(1, product.code());
+                        merge.setString(2, categoryPath);
+                        merge.executeUpdate();
+                    }
+                }
+
+                connection.commit();
+                return change;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            // Forget what was not written, so the next save retries it
+            if (previousFingerprint == null) {
+                manifest.fingerprints().remove(product.code());
+            } else {
+                manifest.fingerprints().put(product.code(), previousFingerprint);
+            }
+            if (newCategoryPath) {
+                manifest.categoryPaths().get(product.code()).remove(categoryPath);
+            }
+            throw new RuntimeException("Unable to save product " + product.code(), e);
+        }
+    }
+
+    /**
+     * Saves extracted products, BATCH_SIZE per transaction.
+     * @param discoveries
+     */
+    public void saveProducts(final Collection<Discovery> discoveries) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement mergeProduct = connection.prepareStatement(MERGE_PRODUCT);
+                 PreparedStatement mergeCategory = connection.prepareStatement(MERGE_PRODUCT_CATEGORY)) {
+                int count = 0;
+                for (Discovery discovery : discoveries) {
+                    String json = toJson(discovery.product());
+                    bindProduct(mergeProduct, discovery.product(), json);
+                    mergeProduct.setLong(4, fingerprint(json));
+                    mergeProduct.addBatch();
+
+                    mergeCategory.setString(1, discovery.product().code());
+                    mergeCategory.setString(2, discovery.categoryPath());
+                    mergeCategory.addBatch();
+
+                    if (++count % BATCH_SIZE == 0) {
+                        mergeProduct.executeBatch();
+                        mergeCategory.executeBatch();
+                        connection.commit();
+                    }
+                }
+                mergeProduct.executeBatch();
+                mergeCategory.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save products", e);
+        } finally {
+            // Reloaded on the next save
+            manifest = null;
+        }
+    }
+
+    /**
+     * Saves a category path of an extracted product, unless it is known already.
+     * @param code
+     * @param categoryPath
+     */
+    public void saveCategoryPath(final String code, final String categoryPath) {
+        Set<String> categoryPaths = manifest().categoryPaths()
+                .computeIfAbsent(code, c -> ConcurrentHashMap.newKeySet());
+
+        if (categoryPaths.add(categoryPath)) {
+            try (Connection connection = connectionPool.getConnection();
+                 PreparedStatement merge = connection.prepareStatement(MERGE_PRODUCT_CATEGORY)) {
+                merge.setString(1, code);
+                merge.setString(2, categoryPath);
+                merge.executeUpdate();
+            } catch (SQLException e) {
+                categoryPaths.remove(categoryPath);
+                throw new RuntimeException("Unable to save category of " + code, e);
+            }
+        }
+    }
+
+    /**
+     * @param code
+     * @return true if the product was extracted
+     */
+    public boolean contains(final String code) {
+        return manifest().fingerprints().containsKey(code);
+    }
+
+    /**
+     * @param code
+     * @return extracted product, null if it was never extracted
+     */
+    public Product getProduct(final String code) {
+        return queryProducts("SELECT json FROM product WHERE code = ?", code)
+                .stream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * @param upc
+     * @return extracted products with the UPC
+     */
+    public List<Product> getProductsByUpc(final long upc) {
+        return queryProducts("SELECT json FROM product WHERE upc = ?", upc);
+    }
+
+    /**
+     * @param code
+     * @return category paths the product was found under
+     */
+    public List<String> getCategoryPaths(final String code) {
+        return queryStrings("SELECT path FROM product_category WHERE code = ? ORDER BY path", code);
+    }
+
+    /**
+     * @param categoryPath
+     * @return codes of the products found under the category path
+     */
+    public List<String> getCodes(final String categoryPath) {
+        return queryStrings("SELECT code FROM product_category WHERE path = ? ORDER BY code", categoryPath);
+    }
+
+    /**
+     * @return category paths of every extracted product
+     */
+    public List<String> getCategoryPaths() {
+        return queryStrings("SELECT DISTINCT path FROM product_category ORDER BY path");
+    }
+
+    /**
+     * Streams the enriched products listed under the category path or below it, ordered by path and code.
+     * Rows are read as they are consumed, so the catalog is never held in memory.
+     * @param categoryPath
+     * @param separator separator of the categories in a path
+     * @param consumer
+     */
+    public void forEachCatalogRow(final String categoryPath,
+                                  final String separator,
+                                  final Consumer<CatalogRow> consumer) {
+        String prefix = categoryPath + separator;
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement("""
+                     SELECT e.json, c.path, x.product_id
+                     FROM enriched_product e
+                     JOIN product_category c ON c.code = e.code
+                     LEFT JOIN exported_product x ON x.code = e.code
+                     WHERE c.path = ? OR LEFT(c.path, ?) = ?
+                     ORDER BY c.path, e.code""")) {
+            select.setString(1, categoryPath);
+            select.setInt(2, prefix.length());
+            select.setString(3, prefix);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(new CatalogRow(objectMapper.readValue(resultSet.getString(1), Product.class),
+                            resultSet.getString(2),
+                            resultSet.getObject(3, Long.class)));
+                }
+            }
+        } catch (SQLException | JsonProcessingException e) {
+            throw new RuntimeException("Unable to read catalog of " + categoryPath, e);
+        }
+    }
+
+    /**
+     * Saves enriched products, BATCH_SIZE per transaction.
+     * @param products
+     */
+    public void saveEnrichedProducts(final Collection<Product> products) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(
+                    "MERGE INTO enriched_product (code, upc, json) KEY (code) VALUES (?, ?, ?)")) {
+                int count = 0;
+                for (Product product : products) {
+                    bindProduct(merge, product, toJson(product));
+                    merge.addBatch();
+
+                    if (++count % BATCH_SIZE == 0) {
+                        merge.executeBatch();
+                        connection.commit();
+                    }
+                }
+                merge.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save enriched products", e);
+        }
+    }
+
+    /**
+     * @return enriched products, ordered by code
+     */
+    public List<Product> getEnrichedProducts() {
+        return queryProducts("SELECT json FROM enriched_product ORDER BY code");
+    }
+
+    /**
+     * Saves transformations of products, BATCH_SIZE per transaction.
+     * @param products partial products, holding the fields which override the extracted ones
+     */
+    public void saveTransforms(final Collection<Product> products) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(
+                    "MERGE INTO transform_product (code, json) KEY (code) VALUES (?, ?)")) {
+                int count = 0;
+                for (Product product : products) {
+                    merge.setString(1, product.code());
+                    merge.setString(2, toJson(product));
+                    merge.addBatch();
+
+                    if (++count % BATCH_SIZE == 0) {
+                        merge.executeBatch();
+                        connection.commit();
+                    }
+                }
+                merge.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save transforms", e);
+        }
+    }
+
+    /**
+     * @return transformations of products, ordered by code
+     */
+    public List<Product> getTransforms() {
+        return queryProducts("SELECT json FROM transform_product ORDER BY code");
+    }
+
+    /**
+     * @param code
+     * @return export of the product, null if it was never exported
+     */
+    public Exported getExported(final String code) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT product_id, fingerprint FROM exported_product WHERE code = ?")) {
+            select.setString(1, code);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next() ? new Exported(resultSet.getLong(1), resultSet.getLong(2)) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read export of " + code, e);
+        }
+    }
+
+    public boolean hasExported() {
+        return count("SELECT COUNT(*) FROM exported_product") > 0;
+    }
+
+    public void saveExported(final String code, final Exported exported) {
+        saveExported(Map.of(code, exported));
+    }
+
+    /**
+     * Saves exports by product code, BATCH_SIZE per transaction.
+     * @param exports
+     */
+    public void saveExported(final Map<String, Exported> exports) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(
+                    "MERGE INTO exported_product (code, product_id, fingerprint) KEY (code) VALUES (?, ?, ?)")) {
+                int count = 0;
+                for (Map.Entry<String, Exported> export : exports.entrySet()) {
+                    merge.setString(1, export.getKey());
+                    merge.setLong(2, export.getValue().productId());
+                    merge.setLong(3, export.getValue().fingerprint());
+                    merge.addBatch();
+
+                    if (++count % BATCH_SIZE == 0) {
+                        merge.executeBatch();
+                        connection.commit();
+                    }
+                }
+                merge.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save exported products", e);
+        }
+    }
+
+    /**
+     * @param productId Shopify product id
+     * @return images uploaded to the product, image id by SHA-256 of the image content
+     */
+    public Map<String, Long> getExportedImages(final long productId) {
+        Map<String, Long> imageIds = new HashMap<>();
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT hash, image_id FROM exported_image WHERE product_id = ?")) {
+            select.setLong(1, productId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    imageIds.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read images of " + productId, e);
+        }
+        return imageIds;
+    }
+
+    /**
+     * @param productId Shopify product id
+     * @return true when the images of the product are tracked, even if none is uploaded yet
+     */
+    public boolean hasExportedImages(final long productId) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT 1 FROM exported_image_product WHERE product_id = ? "
+                             + "UNION SELECT 1 FROM exported_image WHERE product_id = ?")) {
+            select.setLong(1, productId);
+            select.setLong(2, productId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read images of " + productId, e);
+        }
+    }
+
+    /**
+     * Replaces the images uploaded to the product, in one transaction,
+     * and tracks the images of the product from then on.
+     * @param productId Shopify product id
+     * @param imageIds image id by SHA-256 of the image content
+     */
+    public void saveExportedImages(final long productId, final Map<String, Long> imageIds) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement track = connection.prepareStatement(
+                         "MERGE INTO exported_image_product (product_id) KEY (product_id) VALUES (?)");
+                 PreparedStatement delete = connection.prepareStatement(
+                         "DELETE FROM exported_image WHERE product_id = ?");
+                 PreparedStatement insert = connection.prepareStatement(
+                         "INSERT INTO exported_image (product_id, hash, image_id) VALUES (?, ?, ?)")) {
+                track.setLong(1, productId);
+                track.executeUpdate();
+
+                delete.setLong(1, productId);
+                delete.executeUpdate();
+
+                for (Map.Entry<String, Long> image : imageIds.entrySet()) {
+                    insert.setLong(1, productId);
+                    insert.setString(2, image.getKey());
+                    insert.setLong(3, image.getValue());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save images of " + productId, e);
+        }
+    }
+
+    /**
+     * @param codes
+     * @return fingerprints of the listing cards last seen for the codes, by code
+     */
+    public Map<String, Long> getListingCards(final Collection<String> codes) {
+        Map<String, Long> fingerprints = new HashMap<>();
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT code, fingerprint FROM listing_card WHERE code = ANY(?)")) {
+            select.setArray(1, connection.createArrayOf("VARCHAR", codes.toArray()));
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    fingerprints.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read listing cards", e);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Saves fingerprints of listing cards by code, BATCH_SIZE per transaction.
+     * @param fingerprints
+     */
+    public void saveListingCards(final Map<String, Long> fingerprints) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(
+                    "MERGE INTO listing_card (code, fingerprint) KEY (code) VALUES (?, ?)")) {
+                int count = 0;
+                for (Map.Entry<String, Long> fingerprint : fingerprints.entrySet()) {
+                    merge.setString(1, fingerprint.getKey());
+                    merge.setLong(2, fingerprint.getValue());
+                    merge.addBatch();
+
+                    if (++count % BATCH_SIZE == 0) {
+                        merge.executeBatch();
+                        connection.commit();
+                    }
+                }
+                merge.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save listing cards", e);
+        }
+    }
+
+    /**
+     * Resumes the last crawl which did not complete, or starts a new one from the root category path "".
+     * @return crawl id
+     */
+    public String startCrawl() {
+        try (Connection connection = connectionPool.getConnection()) {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT id FROM crawl WHERE completed IS NULL ORDER BY started DESC LIMIT 1");
+                 ResultSet resultSet = select.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getString(1);
+                }
+            }
+
+            String crawlId = UUID.randomUUID().toString();
+
+            connection.setAutoCommit(false);
+            try (PreparedStatement insertCrawl = connection.prepareStatement(
+                    "INSERT INTO crawl (id, started) VALUES (?, CURRENT_TIMESTAMP)");
+                 PreparedStatement insertCategory = connection.prepareStatement(
+                         "INSERT INTO crawl_category (crawl_id, path, done) VALUES (?, '', FALSE)")) {
+                insertCrawl.setString(1, crawlId);
+                insertCrawl.executeUpdate();
+                insertCategory.setString(1, crawlId);
+                insertCategory.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+            return crawlId;
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to start crawl", e);
+        }
+    }
+
+    /**
+     * @param crawlId
+     * @return categories and SKUs of the crawl not fetched yet, abandoned ones left out
+     */
+    public Frontier getFrontier(final String crawlId) {
+        List<String> categoryPaths = queryStrings(
+                "SELECT path FROM crawl_category WHERE crawl_id = ? AND NOT done AND NOT abandoned ORDER BY path", crawlId);
+
+        List<CrawlSku> skus = new ArrayList<>();
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT code, path FROM crawl_sku WHERE crawl_id = ? AND NOT done AND NOT abandoned ORDER BY code, path")) {
+            select.setString(1, crawlId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    skus.add(new CrawlSku(resultSet.getString(1), resultSet.getString(2)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read frontier of " + crawlId, e);
+        }
+
+        return new Frontier(categoryPaths, skus);
+    }
+
+    /**
+     * Checkpoints a browsed category in one transaction: its SKUs and sub categories join the frontier
+     * and the category is done.
+     * @param crawlId
+     * @param categoryPath
+     * @param skuCodes SKUs listed in the category
+     * @param subCategoryPaths sub categories of the category
+     * @return the SKUs and sub categories which were not in the crawl yet
+     */
+    public Frontier expandFrontier(final String crawlId,
+                                   final String categoryPath,
+                                   final Collection<String> skuCodes,
+                                   final Collection<String> subCategoryPaths) {
+        List<String> newCategoryPaths = new ArrayList<>();
+        List<CrawlSku> newSkus = new ArrayList<>();
+
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insertSku = connection.prepareStatement("""
+                    INSERT INTO crawl_sku (crawl_id, code, path, done)
+                    SELECT ?, ?, ?, FALSE WHERE NOT EXISTS
+                    (SELECT 1 FROM crawl_sku WHERE crawl_id = ? AND code = ? AND path = ?)""");
+                 PreparedStatement insertCategory = connection.prepareStatement("""
+                         INSERT INTO crawl_category (crawl_id, path, done)
+                         SELECT ?, ?, FALSE WHERE NOT EXISTS
+                         (SELECT 1 FROM crawl_category WHERE crawl_id = ? AND path = ?)""");
+                 PreparedStatement update = connection.prepareStatement(
+                         "UPDATE crawl_category SET done = TRUE WHERE crawl_id = ? AND path = ?")) {
+                for (String skuCode : skuCodes) {
+                    insertSku.setString(1, crawlId);
+                    insertSku.setString(2, skuCode);
+                    insertSku.setString(3, categoryPath);
+                    insertSku.setString(4, crawlId);
+                    insertSku.setString(5, skuCode);
+                    insertSku.setString(6, categoryPath);
+                    if (insertSku.executeUpdate() > 0) {
+                        newSkus.add(new CrawlSku(skuCode, categoryPath));
+                    }
+                }
+                for (String subCategoryPath : subCategoryPaths) {
+                    insertCategory.setString(1, crawlId);
+                    insertCategory.setString(2, subCategoryPath);
+                    insertCategory.setString(3, crawlId);
+                    insertCategory.setString(4, subCategoryPath);
+                    if (insertCategory.executeUpdate() > 0) {
+                        newCategoryPaths.add(subCategoryPath);
+                    }
+                }
+                update.setString(1, crawlId);
+                update.setString(2, categoryPath);
+                update.executeUpdate();
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to checkpoint " + categoryPath + " of " + crawlId, e);
+        }
+
+        return new Frontier(newCategoryPaths, newSkus);
+    }
+
+    /**
+     * @param crawlId
+     * @param code
+     * @return true if the SKU was fetched in the crawl, under any category
+     */
+    public boolean isFetched(final String crawlId, final String code) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT 1 FROM crawl_sku WHERE crawl_id = ? AND code = ? AND done LIMIT 1")) {
+            select.setString(1, crawlId);
+            select.setString(2, code);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read frontier of " + crawlId, e);
+        }
+    }
+
+    public void markFetched(final String crawlId, final CrawlSku sku) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE crawl_sku SET done = TRUE WHERE crawl_id = ? AND code = ? AND path = ?")) {
+            update.setString(1, crawlId);
+            update.setString(2, sku.code());
+            update.setString(3, sku.categoryPath());
+            update.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to checkpoint " + sku.code() + " of " + crawlId, e);
+        }
+    }
+
+    /**
+     * Records a failed attempt at a category of the crawl.
+     * @param crawlId
+     * @param categoryPath
+     * @param maxAttempts attempts before the category is abandoned
+     * @param gone true to abandon the category right away
+     * @return true once the category is abandoned, it leaves the frontier
+     */
+    public boolean failCategory(final String crawlId,
+                                final String categoryPath,
+                                final int maxAttempts,
+                                final boolean gone) {
+        return fail("crawl_category", "crawl_id = ? AND path = ?", maxAttempts, gone, crawlId, categoryPath);
+    }
+
+    /**
+     * Records a failed attempt at a SKU of the crawl.
+     * @param crawlId
+     * @param sku
+     * @param maxAttempts attempts before the SKU is abandoned
+     * @param gone true to abandon the SKU right away
+     * @return true once the SKU is abandoned, it leaves the frontier
+     */
+    public boolean failSku(final String crawlId,
+                           final CrawlSku sku,
+                           final int maxAttempts,
+                           final boolean gone) {
+        return fail("crawl_sku", "crawl_id = ? AND code = ? AND path = ?", maxAttempts, gone,
+                crawlId, sku.code(), sku.categoryPath());
+    }
+
+    private boolean fail(final String table,
+                         final String where,
+                         final int maxAttempts,
+                         final boolean gone,
+                         final String... keys) {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement update = connection.prepareStatement("UPDATE " + table
+                     + " SET attempts = attempts + 1, abandoned = (? OR attempts + 1 >= ?) WHERE " + where);
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT abandoned FROM " + table + " WHERE " + where)) {
+            update.setBoolean(1, gone);
+            update.setInt(2, maxAttempts);
+            for (int i = 0; i < keys.length; i++) {
+                update.setString(i + 3, keys[i]);
+                select.setString(i + 1, keys[i]);
+            }
+            update.executeUpdate();
+            try (ResultSet resultSet = select.executeQuery()) {
+                return !resultSet.next() || resultSet.getBoolean(1);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to checkpoint " + String.join(" ", keys), e);
+        }
+    }
+
+    /**
+     * Marks the crawl completed and drops its frontier.
+     * @param crawlId
+     */
+    public void completeCrawl(final String crawlId) {
+        try (Connection connection = connectionPool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement deleteSkus = connection.prepareStatement(
+                    "DELETE FROM crawl_sku WHERE crawl_id = ?");
+                 PreparedStatement deleteCategories = connection.prepareStatement(
+                         "DELETE FROM crawl_category WHERE crawl_id = ?");
+                 PreparedStatement update = connection.prepareStatement(
+                         "UPDATE crawl SET completed = CURRENT_TIMESTAMP WHERE id = ?")) {
+                for (PreparedStatement statement : List.of(deleteSkus, deleteCategories, update)) {
+                    statement.setString(1, crawlId);
+                    statement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to complete crawl " + crawlId, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        connectionPool.dispose();
+    }
+
+    private void bindProduct(final PreparedStatement statement,
+                             final Product product,
+                             final String json) throws SQLException {
+        statement.setString(1, product.code());
+        if (product.upc() == null) {
+            statement.setNull(2, Types.BIGINT);
+        } else {
+            statement.setLong(2, product.upc());
+        }
+        statement.setString(3, json);
+    }
+
+    private Manifest manifest() {
+        Manifest loaded = manifest;
+        if (loaded == null) {
+            synchronized (this) {
+                if (manifest == null) {
+                    manifest = loadManifest();
+                }
+                loaded = manifest;
+            }
+        }
+        return loaded;
+    }
+
+    private Manifest loadManifest() {
+        Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+        Map<String, Set<String>> categoryPaths = new ConcurrentHashMap<>();
+
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery("SELECT code, fingerprint FROM product")) {
+                while (resultSet.next()) {
+                    fingerprints.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT code, path FROM product_category")) {
+                while (resultSet.next()) {
+                    categoryPaths.computeIfAbsent(resultSet.getString(1), code -> ConcurrentHashMap.newKeySet())
+                            .add(resultSet.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to load fingerprints", e);
+        }
+
+        logger.info("Loaded fingerprints of " + fingerprints.size() + " products");
+
+        return new Manifest(fingerprints, categoryPaths);
+    }
+
+    /**
+     * 64 bit fingerprint of the product JSON.
+     * Product is a record, so its JSON is canonical: same fields, same order.
+     */
+    private static long fingerprint(final String json) {
+        return Hashing.farmHashFingerprint64()
+                .hashString(json, StandardCharsets.UTF_8)
+                .asLong();
+    }
+
+    private String toJson(final Product product) {
+        try {
+            return objectMapper.writeValueAsString(product);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<Product> queryProducts(final String sql, final Object... parameters) {
+        List<Product> products = new ArrayList<>();
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                select.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    products.add(objectMapper.readValue(resultSet.getString(1), Product.class));
+                }
+            }
+        } catch (SQLException | JsonProcessingException e) {
+            throw new RuntimeException("Unable to read products", e);
+        }
+        return products;
+    }
+
+    private List<String> queryStrings(final String sql, final Object... parameters) {
+        List<String> values = new ArrayList<>();
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement select = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                select.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    values.add(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to query catalog", e);
+        }
+        return values;
+    }
+
+    private long count(final String sql) {
+        try (Connection connection = connectionPool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to query catalog", e);
+        }
+    }
+}
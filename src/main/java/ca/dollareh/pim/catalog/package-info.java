@@ -0,0 +1,4 @@
+/**
+ * Embedded Catalog of the Product Sources.
+ */
+package ca.dollareh.pim.catalog;
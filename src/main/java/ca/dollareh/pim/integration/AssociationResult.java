@@ -0,0 +1,13 @@
+package ca.dollareh.pim.integration;
+
+import java.util.Set;
+
+/**
+ * Outcome of adding products to collections.
+ * @param created collects created
+ * @param existing collects which were already there
+ * @param failed collects Shopify did not create
+ * @param unknownTitles collection titles with no collection on Shopify
+ */
+public record AssociationResult(long created, long existing, long failed, Set<String> unknownTitles) {
+}
@@ -0,0 +1,89 @@
+package ca.dollareh.pim.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encodes a stream to Base64 while it is read, one chunk at a time.
+ * Memory held is two small buffers, whatever the size of the source.
+ */
+class Base64InputStream extends InputStream {
+
+    // Multiple of 3, so chunks encode without padding until the last one
+    private static final int CHUNK_SIZE = 3 * 4096;
+
+    private final Base64.Encoder encoder = Base64.getEncoder();
+
+    private final InputStream source;
+
+    private final byte[] raw = new byte[CHUNK_SIZE];
+
+    private final byte[] encoded = new byte[CHUNK_SIZE / 3 * 4];
+
+    private int position;
+
+    private int limit;
+
+    private boolean endOfSource;
+
+    Base64InputStream(final InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Length of the Base64 encoding (with padding) of size bytes.
+     */
+    static long encodedLength(final long size) {
+        return 4 * ((size + 2) / 3);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return encoded[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int count = Math.min(length, limit - position);
+        System.arraycopy(encoded, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfSource) {
+            return false;
+        }
+
+        int count = source.readNBytes(raw, 0, CHUNK_SIZE);
+
+        if (count < CHUNK_SIZE) {
+            endOfSource = true;
+            if (count == 0) {
+                return false;
+            }
+            limit = encoder.encode(Arrays.copyOf(raw, count), encoded);
+        } else {
+            limit = encoder.encode(raw, encoded);
+        }
+
+        position = 0;
+        return true;
+    }
+}
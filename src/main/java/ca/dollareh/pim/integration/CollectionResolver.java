@@ -0,0 +1,83 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.source.ProductSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the category paths of a product to the collections of the path and of all its ancestors.
+ * Collection mappings (e.g. MultiCraft-art-brushes=123) are compiled into a trie of categories, so the
+ * collections of a path are found in a single walk from its top category. Resolved paths are memoized.
+ */
+public class CollectionResolver {
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        private String collectionId;
+    }
+
+    private final Node sourceNode;
+
+    private final Map<List<String>, List<String>> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * @param collectionMappings collection ids by source name and category path
+     * @param sourceName name of the product source, the first part of its mappings
+     */
+    public CollectionResolver(final Properties collectionMappings, final String sourceName) {
+        Node root = new Node();
+
+        for (String path : collectionMappings.stringPropertyNames()) {
+            Node node = root;
+            for (String category : path.split(ProductSource.COLLECTION_SEPARATOR)) {
+                node = node.children.computeIfAbsent(category, c -> new Node());
+            }
+            node.collectionId = collectionMappings.getProperty(path);
+        }
+
+        sourceNode = root.children.getOrDefault(sourceName, new Node());
+    }
+
+    /**
+     * @param categories category path, from its top category
+     * @return collection ids of the path and its ancestors, top category first
+     */
+    public List<String> resolve(final List<String> categories) {
+        return resolved.computeIfAbsent(List.copyOf(categories), path -> {
+            List<String> collectionIds = new ArrayList<>();
+            Node node = sourceNode;
+            for (String category : path) {
+                node = node.children.get(category);
+                if (node == null) {
+                    break;
+                }
+                if (node.collectionId != null) {
+                    collectionIds.add(node.collectionId);
+                }
+            }
+            return List.copyOf(collectionIds);
+        });
+    }
+
+    /**
+     * @param categoryPaths category paths of a product
+     * @return distinct collection ids of every path and their ancestors
+     */
+    public Set<String> resolveAll(final Collection<List<String>> categoryPaths) {
+        Set<String> collectionIds = new LinkedHashSet<>();
+        for (List<String> categories : categoryPaths) {
+            collectionIds.addAll(resolve(categories));
+        }
+        return collectionIds;
+    }
+}
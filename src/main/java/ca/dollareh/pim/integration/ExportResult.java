@@ -0,0 +1,31 @@
+package ca.dollareh.pim.integration;
+
+/**
+ * Outcome of exporting one product to Shopify.
+ * @param code product code
+ * @param status what happened to the product
+ * @param productId Shopify product id, null when the export failed
+ * @param message reason of the failure
+ */
+public record ExportResult(String code, Status status, Long productId, String message) {
+
+    public enum Status {
+        CREATED, UPDATED, UNCHANGED, FAILED
+    }
+
+    public static ExportResult created(final String code, final Long productId) {
+        return new ExportResult(code, Status.CREATED, productId, null);
+    }
+
+    public static ExportResult updated(final String code, final Long productId) {
+        return new ExportResult(code, Status.UPDATED, productId, null);
+    }
+
+    public static ExportResult unchanged(final String code, final Long productId) {
+        return new ExportResult(code, Status.UNCHANGED, productId, null);
+    }
+
+    public static ExportResult failed(final String code, final String message) {
+        return new ExportResult(code, Status.FAILED, null, message);
+    }
+}
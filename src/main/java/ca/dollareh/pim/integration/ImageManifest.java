@@ -0,0 +1,59 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Images uploaded to Shopify, by product id and SHA-256 of the image content.
+ * Kept in the catalog and saved per product, like the exported products, so an interrupted
+ * export never uploads the images of the products it already synced again.
+ */
+public class ImageManifest {
+
+    private final CatalogStore catalogStore;
+
+    public ImageManifest(final CatalogStore catalogStore) {
+        this.catalogStore = catalogStore;
+    }
+
+    /**
+     * SHA-256 of the file, read as a stream.
+     * @param file
+     * @return hex digest
+     */
+    public static String hash(final File file) throws IOException {
+        return com.google.common.io.Files.asByteSource(file)
+                .hash(Hashing.sha256())
+                .toString();
+    }
+
+    /**
+     * Images of the product uploaded so far.
+     * @param productId
+     * @return image id by content hash, a copy to change and save
+     */
+    public Map<String, Long> imageIds(final Long productId) {
+        return catalogStore.getExportedImages(productId);
+    }
+
+    /**
+     * @param productId
+     * @return true when the images of the product are tracked, even if every upload failed so far
+     */
+    public boolean contains(final Long productId) {
+        return catalogStore.hasExportedImages(productId);
+    }
+
+    /**
+     * Replaces the images of the product and tracks them from then on.
+     * @param productId
+     * @param imageIds image id by content hash
+     */
+    public void save(final Long productId, final Map<String, Long> imageIds) {
+        catalogStore.saveExportedImages(productId, imageIds);
+    }
+}
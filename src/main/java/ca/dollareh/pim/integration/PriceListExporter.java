@@ -0,0 +1,205 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+import org.dhatim.fastexcel.Workbook;
+import org.dhatim.fastexcel.Worksheet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Exports the enriched catalog of a product source as an XLSX price list, with fastexcel.
+ * There is a sheet per top level category, listing each product under every category path it is found in.
+ * By default sheets are filled one at a time and their rows flushed as they are written, so memory stays
+ * constant whatever the size of the catalog. With a higher parallelism, sheets are filled concurrently
+ * and each one is written out as soon as it is complete, memory is then bounded by the sheets in progress.
+ */
+public class PriceListExporter {
+
+    private static final String[] HEADERS = {
+            "Code", "Title", "UPC", "Pack", "Price", "Discount", "Category", "Shopify ID"
+    };
+
+    private static final int FLUSH_ROWS = 1000;
+
+    final Logger logger = LoggerFactory.getLogger(PriceListExporter.class);
+
+    private final ProductSource productSource;
+
+    private final CatalogStore catalogStore;
+
+    private final int parallelism;
+
+    private PriceListExporter(final PriceListExporterBuilder builder) {
+        productSource = builder.productSource;
+        catalogStore = productSource.getCatalogStore();
+        parallelism = builder.parallelism;
+    }
+
+    // Use a builder to instantiate PriceListExporter
+    public static PriceListExporterBuilder from(final ProductSource productSource) {
+        return new PriceListExporterBuilder(productSource);
+    }
+
+    /**
+     * Writes the price list.
+     * @param workbookPath xlsx file
+     * @return number of rows written
+     */
+    public long export(final Path workbookPath) throws IOException {
+        Files.createDirectories(workbookPath.toAbsolutePath().getParent());
+
+        try (OutputStream outputStream = Files.newOutputStream(workbookPath)) {
+            Workbook workbook = new Workbook(outputStream, "vendor-manager", "1.0");
+
+            // Sheets are created up front, in order, the rows are filled in concurrently
+            Map<String, Worksheet> worksheets = new LinkedHashMap<>();
+            for (String categoryPath : getTopCategoryPaths()) {
+                worksheets.put(categoryPath, workbook.newWorksheet(
+                        categoryPath.isEmpty() ? productSource.getClass().getSimpleName() : categoryPath));
+            }
+
+            Semaphore permits = new Semaphore(parallelism);
+
+            List<CompletableFuture<Long>> sheets = new ArrayList<>();
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                worksheets.forEach((categoryPath, worksheet) -> sheets.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        permits.acquire();
+                        try {
+                            return writeSheet(workbook, worksheet, categoryPath);
+                        } finally {
+                            permits.release();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, executor)));
+            }
+
+            long rows = 0;
+            for (CompletableFuture<Long> sheet : sheets) {
+                try {
+                    rows += sheet.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                        throw uncheckedIOException.getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            workbook.finish();
+
+            logger.info("Exported " + rows + " rows of " + productSource.getClass().getSimpleName()
+                    + " to " + workbookPath);
+
+            return rows;
+        }
+    }
+
+    private List<String> getTopCategoryPaths() {
+        List<String> topCategoryPaths = new ArrayList<>();
+        for (String categoryPath : catalogStore.getCategoryPaths()) {
+            int separator = categoryPath.indexOf(ProductSource.COLLECTION_SEPARATOR);
+            String topCategoryPath = separator == -1 ? categoryPath : categoryPath.substring(0, separator);
+            // Paths are sorted, so the paths of a top category follow each other
+            if (topCategoryPaths.isEmpty() || !topCategoryPaths.getLast().equals(topCategoryPath)) {
+                topCategoryPaths.add(topCategoryPath);
+            }
+        }
+        return topCategoryPaths;
+    }
+
+    private long writeSheet(final Workbook workbook,
+                            final Worksheet worksheet,
+                            final String categoryPath) throws IOException {
+        for (int column = 0; column < HEADERS.length; column++) {
+            worksheet.value(0, column, HEADERS[column]);
+        }
+        worksheet.range(0, 0, 0, HEADERS.length - 1).style().bold().set();
+        worksheet.freezePane(0, 1);
+
+        // UPCs and ids are shown in full rather than in scientific notation
+        worksheet.style(2).format("0").set();
+        worksheet.style(4).format("0.00").set();
+        worksheet.style(5).format("0.00").set();
+        worksheet.style(7).format("0").set();
+
+        long[] rows = {0};
+
+        catalogStore.forEachCatalogRow(categoryPath, ProductSource.COLLECTION_SEPARATOR, catalogRow -> {
+            int row = (int) ++rows[0];
+            Product product = catalogRow.product();
+
+            worksheet.value(row, 0, product.code());
+            worksheet.value(row, 1, product.title());
+            worksheet.value(row, 2, product.upc());
+            worksheet.value(row, 3, product.inventryQuantity());
+            worksheet.value(row, 4, product.price());
+            worksheet.value(row, 5, product.discount());
+            worksheet.value(row, 6, catalogRow.categoryPath());
+            worksheet.value(row, 7, catalogRow.productId());
+
+            // A flushed sheet keeps its entry of the workbook stream open, so only a lone sheet can flush
+            if (parallelism == 1 && row % FLUSH_ROWS == 0) {
+                try {
+                    worksheet.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+
+        // Sheets are written to the workbook stream one entry at a time
+        synchronized (workbook) {
+            worksheet.finish();
+        }
+
+        return rows[0];
+    }
+
+    // Builder class
+    public static class PriceListExporterBuilder {
+
+        private final ProductSource productSource;
+
+        private int parallelism = 1;
+
+        public PriceListExporterBuilder(final ProductSource productSource) {
+            this.productSource = productSource;
+        }
+
+        /**
+         * Sheets filled at a time, 1 (the default) to flush rows as they are written.
+         */
+        public PriceListExporterBuilder parallelism(final int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public PriceListExporter build() {
+            return new PriceListExporter(this);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package ca.dollareh.pim.integration;
+
+/**
+ * Outcome of provisioning collections.
+ * @param created collections created
+ * @param updated collections whose category paths were changed
+ * @param unchanged collections which already collected their category paths
+ * @param failed collections Shopify did not create or update
+ */
+public record ProvisioningResult(long created, long updated, long unchanged, long failed) {
+}
@@ -1,57 +1,196 @@
 package ca.dollareh.pim.integration;
 
+import ca.dollareh.pim.catalog.CatalogStore;
 import ca.dollareh.pim.model.Product;
 import ca.dollareh.pim.source.ProductSource;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.hash.Hashing;
 import org.apache.hc.core5.net.URIBuilder;
-import org.jsoup.UncheckedIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Base64;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Shopify {
 
+    private static final String PRODUCT_GID_PREFIX = "gid://shopify/Product/";
+
+    private static final String COLLECTION_GID_PREFIX = "gid://shopify/Collection/";
+
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "PUT", "DELETE");
+
+    private static final String PRODUCT_SET_MUTATION = """
+            mutation call($input: ProductSetInput!) {
+              productSet(input: $input) {
+                product { id handle }
+                userErrors { field message }
+              }
+            }
+            """;
+
+    private static final String COLLECTIONS_WITH_PATHS_QUERY = """
+            query collections($cursor: String) {
+              collections(first: 250, after: $cursor, query: "collection_type:custom") {
+                pageInfo { hasNextPage endCursor }
+                nodes {
+                  legacyResourceId
+                  title
+                  metafield(namespace: "vendor", key: "downstream_collection_paths") { value }
+                }
+              }
+            }
+            """;
+
+    private static final String METAFIELDS_SET_MUTATION = """
+            mutation metafieldsSet($metafields: [MetafieldsSetInput!]!) {
+              metafieldsSet(metafields: $metafields) {
+                metafields { id }
+                userErrors { field message }
+              }
+            }
+            """;
+
+    /**
+     * Metafields set by a single metafieldsSet call, at most.
+     */
+    private static final int METAFIELDS_SET_BATCH_SIZE = 25;
+
     final Logger logger = LoggerFactory.getLogger(Shopify.class);
 
     private final String baseUrl;
 
+    private final String accessToken;
+
+    /**
+     * Single client shared by every call, so connections (and HTTP/2 streams) are pooled and reused.
+     */
+    private final HttpClient client;
+
+    private final Duration requestTimeout;
+
+    /**
+     * Shared by every call of this store, so concurrent callers share one rate budget.
+     */
+    private final ShopifyRateLimiter rateLimiter;
+
+    private final int maxRetries;
+
+    private final int concurrency;
+
+    private final Duration bulkPollInterval;
+
     private final Path exportPath;
 
     private final ObjectMapper objectMapper;
 
     private final ProductSource productSource;
 
+    private final ImageManifest imageManifest;
+
+    /**
+     * Enriched products to export and the Shopify product id and fingerprint they were exported with.
+     */
+    private final CatalogStore catalogStore;
+
     private final File collectionMappingsFile;
     private final Properties collectionMappings;
 
     private final String defaultCollectionId;
 
+    /**
+     * Collections of category paths, compiled from collectionMappings.
+     */
+    private volatile CollectionResolver collectionResolver;
+
+    /**
+     * Collection ids by title, loaded from every collection of the store on first use.
+     */
+    private volatile Map<String, Long> collectionIds;
+
+    // A lock rather than synchronized, so virtual threads waiting for the load are never pinned
+    private final ReentrantLock collectionIdsLock = new ReentrantLock();
+
     public Shopify(ProductSource productSource) {
-        this.productSource = productSource;
+        this(from(productSource));
+    }
 
-        baseUrl = System.getenv("SHOPIFY_BASE_URL");
+    private Shopify(ShopifyBuilder builder) {
+        this.productSource = builder.productSource;
+
+        baseUrl = builder.baseUrl;
+        accessToken = builder.accessToken;
+        requestTimeout = builder.requestTimeout;
+        rateLimiter = builder.rateLimiter;
+        maxRetries = builder.maxRetries;
+        concurrency = builder.concurrency;
+        bulkPollInterval = builder.bulkPollInterval;
+
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(builder.connectTimeout);
+
+        if (builder.executor != null) {
+            clientBuilder.executor(builder.executor);
+        }
+
+        client = clientBuilder.build();
 
         exportPath = Path.of("workspace/export/" + getClass().getSimpleName() + "/" + productSource.getClass().getSimpleName());
 
@@ -60,6 +199,13 @@ public class Shopify {
         objectMapper = new ObjectMapper();
         objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
 
+        catalogStore = productSource.getCatalogStore();
+
+        imageManifest = new ImageManifest(catalogStore);
+        if (!catalogStore.hasExported()) {
+            indexExportedProducts();
+        }
+
         collectionMappingsFile = new File(exportPath.toFile(), "collection.properties");
         collectionMappings = new Properties();
 
@@ -86,11 +232,16 @@ public class Shopify {
             }
         }
 
+        collectionResolver = new CollectionResolver(collectionMappings, productSource.getClass().getSimpleName());
+
     }
 
-    public Map<String, Object> createCollection(String title,List<String> downSteamPaths) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
+    // Use a builder to tune the HTTP client of Shopify
+    public static ShopifyBuilder from(ProductSource productSource) {
+        return new ShopifyBuilder(productSource);
+    }
 
+    public Map<String, Object> createCollection(String title,List<String> downSteamPaths) throws IOException, InterruptedException {
         Map<String, Object> collectionMap = new HashMap();
         collectionMap.put("title", title);
 
@@ -104,166 +255,719 @@ public class Shopify {
             collectionMap.put("metafields", List.of(metaFoiledsMap));
         }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + "/custom_collections.json"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
+        HttpRequest request = newRequest("/custom_collections.json")
                 .POST(HttpRequest.BodyPublishers.ofString(objectMapper
                         .writeValueAsString(Map.of("custom_collection", collectionMap))))
                 .build();
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = send(request);
 
-        return objectMapper.readValue(response.body()
+        Map<String, Object> createdCollection = objectMapper.readValue(response.body()
                 , new TypeReference<>() {
                 });
+
+        if (collectionIds != null && createdCollection.get("custom_collection") instanceof Map<?, ?> collection
+                && collection.get("id") instanceof Number id) {
+            collectionIds.put(title, id.longValue());
+        }
+
+        return createdCollection;
     }
 
+    /**
+     * Rebuilds collection.properties from the downstream_collection_paths metafield of every collection.
+     * Collections and their metafield are read together, 250 per request.
+     */
     public void createCollectionMappings() {
-        Map<Long, Map<String, Object>> collectionsMap =  getShopifyCollection();
-
-
-        collectionsMap.entrySet().stream().forEach(longMapEntry -> {
-            List<Map<String, Object>> metaFields = getMetafields(longMapEntry.getKey());
-            if(!metaFields.isEmpty()) {
-                metaFields.stream()
-                        .filter(metaFieldMap -> metaFieldMap.get("key").equals("downstream_collection_paths"))
-                        .forEach(metaFieldMap -> {
-                            List<String> paths = null;
-                            try {
-                                paths = objectMapper.readerForListOf(String.class).readValue(metaFieldMap.get("value").toString());
-                                if(!paths.isEmpty()) {
-                                    paths.forEach(s -> {
-                                        collectionMappings.put(s, longMapEntry.getKey().toString());
-                                    });
-                                }
-                            } catch (JsonProcessingException e) {
-                                throw new RuntimeException(e);
-                            }
+        saveCollectionMappings(getShopifyCollectionsWithPaths());
+    }
 
-                        });
+    /**
+     * Provisions the collections of the category paths of this source.
+     * The desired collections are diffed against those of the store : missing collections are created
+     * concurrently, with their paths, and the downstream_collection_paths metafield of collections whose
+     * paths of this source differ is set in batches. Paths of other sources are kept. collection.properties
+     * is then rebuilt from the result, without reading the collections again.
+     * @param collectionCategories category paths of this source (e.g. [art, brushes]), by collection title
+     * @return outcome of the provisioning
+     */
+    public ProvisioningResult provisionCollections(final Map<String, ? extends Collection<List<String>>> collectionCategories) {
+        String sourcePrefix = productSource.getClass().getSimpleName() + ProductSource.COLLECTION_SEPARATOR;
+
+        Map<String, Set<String>> collectionPaths = new LinkedHashMap<>();
+        collectionCategories.forEach((title, categoryPaths) -> {
+            Set<String> paths = collectionPaths.computeIfAbsent(title, t -> new TreeSet<>());
+            for (List<String> categories : categoryPaths) {
+                if (!categories.isEmpty()) {
+                    paths.add(sourcePrefix + String.join(ProductSource.COLLECTION_SEPARATOR, categories));
+                }
             }
-
         });
 
-        try {
-            collectionMappings.store(new FileOutputStream(collectionMappingsFile),"Updated for Product Induction");
+        // Every collection is kept for the mappings, the first of each title is the one diffed
+        List<ShopifyCollection> shopifyCollections = new ArrayList<>(getShopifyCollectionsWithPaths());
+
+        Map<String, ShopifyCollection> existingCollections = new LinkedHashMap<>();
+        for (ShopifyCollection shopifyCollection : shopifyCollections) {
+            existingCollections.putIfAbsent(shopifyCollection.title(), shopifyCollection);
+        }
+
+        Map<Long, ShopifyCollection> updatedCollections = new HashMap<>();
+
+        Map<String, List<String>> missingCollections = new LinkedHashMap<>();
+        List<ShopifyCollection> changedCollections = new ArrayList<>();
+        long unchanged = 0;
+
+        for (Map.Entry<String, Set<String>> desired : collectionPaths.entrySet()) {
+            ShopifyCollection existing = existingCollections.get(desired.getKey());
+
+            if (existing == null) {
+                missingCollections.put(desired.getKey(), List.copyOf(desired.getValue()));
+            } else {
+                Set<String> paths = new TreeSet<>(desired.getValue());
+                for (String path : existing.downstreamPaths()) {
+                    if (!path.startsWith(sourcePrefix)) {
+                        paths.add(path);
+                    }
+                }
+
+                if (paths.equals(new TreeSet<>(existing.downstreamPaths()))) {
+                    unchanged++;
+                } else {
+                    changedCollections.add(new ShopifyCollection(existing.id(), existing.title(), List.copyOf(paths)));
+                }
+            }
+        }
+
+        Queue<ShopifyCollection> createdCollections = new ConcurrentLinkedQueue<>();
+        AtomicLong failed = new AtomicLong();
+
+        Semaphore permits = new Semaphore(concurrency);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            missingCollections.forEach((title, paths) -> executor.submit(() -> {
+                try {
+                    permits.acquire();
+                    try {
+                        Map<String, Object> createdCollection = createCollection(title, paths);
+                        if (createdCollection.get("custom_collection") instanceof Map<?, ?> collection
+                                && collection.get("id") instanceof Number id) {
+                            createdCollections.add(new ShopifyCollection(id.longValue(), title, paths));
+                        } else {
+                            logger.error("Unable to create collection " + title + " : " + createdCollection);
+                            failed.incrementAndGet();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                } catch (IOException e) {
+                    logger.error("Unable to create collection " + title, e);
+                    failed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.incrementAndGet();
+                }
+            }));
+        }
+
+        long updated = 0;
+
+        for (int from = 0; from < changedCollections.size(); from += METAFIELDS_SET_BATCH_SIZE) {
+            List<ShopifyCollection> batch = changedCollections.subList(from,
+                    Math.min(from + METAFIELDS_SET_BATCH_SIZE, changedCollections.size()));
+            try {
+                setDownstreamPaths(batch);
+                updated += batch.size();
+                for (ShopifyCollection changedCollection : batch) {
+                    updatedCollections.put(changedCollection.id(), changedCollection);
+                }
+            } catch (IOException e) {
+                logger.error("Unable to set the paths of " + batch.stream().map(ShopifyCollection::title).toList(), e);
+                failed.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted provisioning collections", e);
+            }
+        }
+
+        shopifyCollections.replaceAll(shopifyCollection ->
+                updatedCollections.getOrDefault(shopifyCollection.id(), shopifyCollection));
+        shopifyCollections.addAll(createdCollections);
+        saveCollectionMappings(shopifyCollections);
+
+        ProvisioningResult provisioningResult = new ProvisioningResult(createdCollections.size(), updated, unchanged, failed.get());
+
+        logger.info("Provisioned " + collectionPaths.size() + " collections : " + provisioningResult);
+
+        return provisioningResult;
+    }
+
+    /**
+     * Sets the downstream_collection_paths metafield of the collections with one metafieldsSet call.
+     */
+    private void setDownstreamPaths(final List<ShopifyCollection> shopifyCollections) throws IOException, InterruptedException {
+        List<Map<String, Object>> metafields = new ArrayList<>(shopifyCollections.size());
+        for (ShopifyCollection shopifyCollection : shopifyCollections) {
+            metafields.add(Map.of(
+                    "ownerId", COLLECTION_GID_PREFIX + shopifyCollection.id(),
+                    "namespace", "vendor",
+                    "key", "downstream_collection_paths",
+                    "type", "list.single_line_text_field",
+                    "value", objectMapper.writeValueAsString(shopifyCollection.downstreamPaths())));
+        }
+
+        checkUserErrors("metafieldsSet", graphql(METAFIELDS_SET_MUTATION, Map.of("metafields", metafields))
+                .path("metafieldsSet"));
+    }
+
+    /**
+     * Rebuilds collection.properties from the collections, then the resolver of their paths.
+     */
+    private void saveCollectionMappings(final Collection<ShopifyCollection> shopifyCollections) {
+        collectionMappings.clear();
+
+        for (ShopifyCollection shopifyCollection : shopifyCollections) {
+            shopifyCollection.downstreamPaths().forEach(path ->
+                    collectionMappings.put(path, shopifyCollection.id().toString()));
+        }
+
+        try (FileOutputStream outputStream = new FileOutputStream(collectionMappingsFile)) {
+            collectionMappings.store(outputStream,"Updated for Product Induction");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
+        collectionResolver = new CollectionResolver(collectionMappings, productSource.getClass().getSimpleName());
     }
 
-    public void export() throws IOException {
+    /**
+     * Gets every custom collection with its vendor.downstream_collection_paths metafield,
+     * following the cursor of a paged GraphQL query.
+     * @return collections
+     */
+    public List<ShopifyCollection> getShopifyCollectionsWithPaths() {
+        List<ShopifyCollection> shopifyCollections = new ArrayList<>();
+
+        String cursor = null;
+        try {
+            do {
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("cursor", cursor);
 
-        Path enrichmentPath = Path.of("workspace/enrichment/" + productSource.getClass().getSimpleName());
+                JsonNode collections = graphql(COLLECTIONS_WITH_PATHS_QUERY, variables).path("collections");
 
-        List<File> enrichedJsonFiles = List.of(enrichmentPath.toFile().listFiles((dir, name) -> name.endsWith(".json")));
+                for (JsonNode node : collections.path("nodes")) {
+                    List<String> downstreamPaths = List.of();
+                    String pathsJson = node.path("metafield").path("value").asText(null);
+                    if (pathsJson != null) {
+                        downstreamPaths = objectMapper.readerForListOf(String.class).readValue(pathsJson);
+                    }
+                    shopifyCollections.add(new ShopifyCollection(node.path("legacyResourceId").asLong(),
+                            node.path("title").asText(),
+                            downstreamPaths));
+                }
 
+                JsonNode pageInfo = collections.path("pageInfo");
+                cursor = pageInfo.path("hasNextPage").asBoolean() ? pageInfo.path("endCursor").asText() : null;
+            } while (cursor != null);
+        } catch (IOException e) {
+            throw new RuntimeException("Error fetching Shopify collections", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted fetching Shopify collections", e);
+        }
 
-        enrichedJsonFiles.stream().forEach(enrichedJsonFile -> {
-            logger.info("Creating Product " + enrichedJsonFile);
-            syncProduct(enrichedJsonFile);
-        });
+        return shopifyCollections;
+    }
+
+    /**
+     * Exports every enriched product to Shopify.
+     * Products are synced on virtual threads, at most concurrency of them at a time,
+     * all sharing the rate budget of the store.
+     * @return outcome of each product
+     */
+    public List<ExportResult> export() throws IOException {
 
+        List<Product> enrichedProducts = catalogStore.getEnrichedProducts();
 
+        Semaphore permits = new Semaphore(concurrency);
 
+        List<Future<ExportResult>> futures = new ArrayList<>(enrichedProducts.size());
 
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Product enrichedProduct : enrichedProducts) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        logger.info("Syncing Product " + enrichedProduct.code());
+                        return syncProduct(enrichedProduct);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+
+        List<ExportResult> exportResults = futures.stream()
+                .map(Future::resultNow)
+                .toList();
+
+        logger.info("Exported " + exportResults.size() + " products : " + exportResults.stream()
+                .collect(Collectors.groupingBy(ExportResult::status, TreeMap::new, Collectors.counting())));
+
+        return exportResults;
     }
 
-    private void syncProduct(File enrichedJsonFile) {
+    private ExportResult syncProduct(Product enrichedProduct) {
+        String code = enrichedProduct.code();
         try {
 
-            Product enrichedProduct = objectMapper
-                    .readValue(enrichedJsonFile, Product.class);
-
             Map<String, Object> shopifyProduct = getShopifyProduct(enrichedProduct);
 
-            File[] jsonFiles = exportPath.toFile().listFiles((dir, name) -> name.startsWith(enrichedProduct.code()));
+            long fingerprint = fingerprint(shopifyProduct);
 
+            CatalogStore.Exported exported = catalogStore.getExported(enrichedProduct.code());
 
             File shopifyProductFile = null;
 
-            if (jsonFiles != null && jsonFiles.length == 1) {
+            ExportResult exportResult;
 
-                shopifyProductFile = jsonFiles[0];
+            if (exported != null) {
 
-                JsonNode existingShoppifyProduct = objectMapper.readTree(shopifyProductFile);
+                if (exported.fingerprint() != fingerprint) {
+                    HttpResponse<String> response = update(exported.productId().toString(), shopifyProduct);
 
-                JsonNode newShoppifyProduct = objectMapper.readTree(objectMapper.writeValueAsString(shopifyProduct));
+                    // The fingerprint is kept only once Shopify has the product, so a failed update is retried
+                    if (response.statusCode() / 100 != 2) {
+                        logger.error("Unable to update product " + code + " : " + response.statusCode() + " " + response.body());
+                        return ExportResult.failed(code, response.statusCode() + " " + response.body());
+                    }
+
+                    catalogStore.saveExported(enrichedProduct.code(), new CatalogStore.Exported(exported.productId(), fingerprint));
+                    shopifyProductFile = getShopifyProductFile(enrichedProduct.code(), exported.productId());
+                    exportResult = ExportResult.updated(code, exported.productId());
+                } else {
+                    exportResult = ExportResult.unchanged(code, exported.productId());
+                }
 
-                if (!existingShoppifyProduct.equals(newShoppifyProduct)) {
-                    String shopifyProductId = shopifyProductFile.getName()
-                            .replaceFirst(enrichedProduct.code()+"-","")
-                            .replace(".json","");
-                    update(shopifyProductId, shopifyProduct);
+                // Only products whose images are tracked, others were uploaded before the manifest existed
+                if (imageManifest.contains(exportResult.productId())) {
+                    createImages(exportResult.productId(), enrichedProduct);
                 }
             } else {
 
                 Map<String, Object> createdProduct = create(shopifyProduct);
 
                 if (createdProduct.get("product") != null ) {
-                    Long id = (Long) ((Map<String, Object>) createdProduct.get("product")).get("id");
+                    Long id = ((Map<String, Object>) createdProduct.get("product")).get("id") instanceof Number number
+                            ? number.longValue() : null;
 
                     if(id == null) {
                         logger.error("Unable to create product : " + enrichedProduct.code());
+                        exportResult = ExportResult.failed(code, "Product created without id");
                     } else {
-                        shopifyProductFile = new File(exportPath.toFile(), enrichedProduct.code() + "-" + id + ".json");
+                        shopifyProductFile = getShopifyProductFile(enrichedProduct.code(), id);
+                        catalogStore.saveExported(enrichedProduct.code(), new CatalogStore.Exported(id, fingerprint));
 
-                        if(defaultCollectionId != null) {
-                            associateCollection(id, defaultCollectionId);
+                        for (String collectionId : getCollectionIds(enrichedProduct)) {
+                            associateCollection(id, collectionId);
                         }
 
                         createImages(id, enrichedProduct);
+
+                        exportResult = ExportResult.created(code, id);
                     }
                 } else {
                     logger.error("Unable to create product : " + createdProduct);
+                    exportResult = ExportResult.failed(code, String.valueOf(createdProduct.get("errors")));
                 }
+            }
+
+            // Unchanged products are already on disk
+            if (shopifyProductFile != null) {
+                objectMapper.writeValue(shopifyProductFile, shopifyProduct);
+            }
+
+            return exportResult;
+
+        } catch (IOException | RuntimeException e) {
+            logger.error("Unable to Sync Product for " + code, e);
+            return ExportResult.failed(code, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted syncing Product " + code, e);
+            return ExportResult.failed(code, e.getMessage());
+        }
+    }
+
+    /**
+     * Exports every enriched product with a single GraphQL bulk operation.
+     * The catalog is written as JSONL, staged on Shopify and applied with bulkOperationRunMutation.
+     * Once the operation completes, its result file maps the created ids back into the export directory.
+     * @return outcome of each product
+     */
+    public List<ExportResult> exportBulk() throws IOException, InterruptedException {
+
+        // Line N of the JSONL is the N th enriched product
+        List<Product> products = catalogStore.getEnrichedProducts();
+        List<Long> existingIds = new ArrayList<>(products.size());
+
+        Path variablesFile = exportPath.resolve("bulk-products.jsonl");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(variablesFile)) {
+            for (Product enrichedProduct : products) {
+                Map<String, Object> productInput = getShopifyProductInput(enrichedProduct);
 
+                CatalogStore.Exported exported = catalogStore.getExported(enrichedProduct.code());
+                Long existingId = exported == null ? null : exported.productId();
 
-                List<List<String>> originalCategories = productSource.getCollection(enrichedProduct.code());
-
-                // There are Categories associated with the product.
-                // We need to find respective Collection IDs
-                if (!originalCategories.isEmpty()){
-//                        originalCategories.forEach(categoryList -> {
-//                            do {
-//                                String path = productSource.getClass().getSimpleName() +
-//                                        "-" +
-//                                        categoryList.stream().collect(Collectors.joining("-"));
-//                                String collectionId = (String) collectionMappings.get(path);
-//                                //logger.info(collectionId);
-//                                if(collectionId == null){
-//                                    logger.info(path + " not found");
-//                                } else {
-//                                    try {
-//                                        associateCollection(id, collectionId);
-//                                    } catch (IOException | InterruptedException e) {
-//                                        throw new RuntimeException(e);
-//                                    }
-//                                }
-//                                List<String> allExceptLast = new ArrayList<>();
-//                                for (int j = 0; j < categoryList.size() -1; j++) {
-//                                    allExceptLast.add(categoryList.get(j));
-//                                }
-//                                categoryList = allExceptLast;
-//                            }while(!categoryList.isEmpty());
-//
-//
-//                        });
+                if (existingId != null) {
+                    productInput.put("id", PRODUCT_GID_PREFIX + existingId);
+                } else {
+                    // Only on creation, a productSet with collections replaces those of the product
+                    productInput.put("collections", getCollectionIds(enrichedProduct).stream()
+                            .map(collectionId -> COLLECTION_GID_PREFIX + collectionId)
+                            .toList());
                 }
+
+                writer.write(objectMapper.writeValueAsString(Map.of("input", productInput)));
+                writer.newLine();
+
+                existingIds.add(existingId);
             }
+        }
 
-            if(shopifyProductFile == null) {
-                logger.error("Unable to Create Product for " + shopifyProductFile);
-            } else {
-                objectMapper.writeValue(shopifyProductFile, shopifyProduct);
+        if (products.isEmpty()) {
+            return List.of();
+        }
+
+        String stagedUploadPath = stageBulkUpload(variablesFile);
+
+        JsonNode bulkOperation = awaitBulkOperation(runBulkMutation(PRODUCT_SET_MUTATION, stagedUploadPath));
+
+        String status = bulkOperation.path("status").asText();
+
+        if (!"COMPLETED".equals(status)) {
+            throw new IOException("Bulk operation " + bulkOperation.path("id").asText() + " " + status
+                    + " : " + bulkOperation.path("errorCode").asText());
+        }
+
+        ExportResult[] exportResults = new ExportResult[products.size()];
+
+        Map<String, CatalogStore.Exported> exports = new HashMap<>();
+
+        String resultUrl = bulkOperation.path("url").asText(null);
+
+        if (resultUrl != null) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(resultUrl))
+                    .timeout(requestTimeout)
+                    .GET()
+                    .build();
+
+            HttpResponse<Stream<String>> response = client.send(request, HttpResponse.BodyHandlers.ofLines());
+
+            try (Stream<String> lines = response.body()) {
+                for (String line : (Iterable<String>) lines::iterator) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    JsonNode resultNode = objectMapper.readTree(line);
+                    int lineNumber = resultNode.path("__lineNumber").asInt();
+                    exportResults[lineNumber] = onBulkResult(products.get(lineNumber),
+                            existingIds.get(lineNumber),
+                            resultNode.path("data").path("productSet"),
+                            exports);
+                }
+            }
+        }
+
+        for (int i = 0; i < exportResults.length; i++) {
+            if (exportResults[i] == null) {
+                exportResults[i] = ExportResult.failed(products.get(i).code(), "Missing from bulk operation result");
             }
+        }
+
+        catalogStore.saveExported(exports);
+
+        return List.of(exportResults);
+    }
 
+    private ExportResult onBulkResult(final Product product,
+                                      final Long existingId,
+                                      final JsonNode productSetNode,
+                                      final Map<String, CatalogStore.Exported> exports) throws IOException {
+        JsonNode userErrors = productSetNode.path("userErrors");
+        String productGid = productSetNode.path("product").path("id").asText(null);
 
-        } catch (IOException | InterruptedException e) {
-            logger.info("Unable to Create Image for " + enrichedJsonFile);
+        if (productGid == null || !userErrors.isEmpty()) {
+            logger.error("Unable to create product : " + product.code() + " " + userErrors);
+            return ExportResult.failed(product.code(), userErrors.toString());
         }
+
+        Long id = Long.valueOf(productGid.substring(productGid.lastIndexOf('/') + 1));
+
+        Map<String, Object> shopifyProduct = getShopifyProduct(product);
+
+        objectMapper.writeValue(getShopifyProductFile(product.code(), id), shopifyProduct);
+
+        exports.put(product.code(), new CatalogStore.Exported(id, fingerprint(shopifyProduct)));
+
+        return existingId == null ? ExportResult.created(product.code(), id) : ExportResult.updated(product.code(), id);
+    }
+
+    /**
+     * Uploads the bulk mutation variables to Shopify's staged upload target.
+     * @param jsonlFile
+     * @return stagedUploadPath to run the bulk mutation with
+     */
+    private String stageBulkUpload(final Path jsonlFile) throws IOException, InterruptedException {
+        JsonNode stagedUploadsCreate = graphql("""
+                mutation stagedUploadsCreate($input: [StagedUploadInput!]!) {
+                  stagedUploadsCreate(input: $input) {
+                    stagedTargets { url resourceUrl parameters { name value } }
+                    userErrors { field message }
+                  }
+                }
+                """, Map.of("input", List.of(Map.of(
+                        "resource", "BULK_MUTATION_VARIABLES",
+                        "filename", jsonlFile.getFileName().toString(),
+                        "mimeType", "text/jsonl",
+                        "httpMethod", "POST")))).path("stagedUploadsCreate");
+
+        checkUserErrors("stagedUploadsCreate", stagedUploadsCreate);
+
+        JsonNode stagedTarget = stagedUploadsCreate.path("stagedTargets").path(0);
+
+        String boundary = "----pim" + UUID.randomUUID();
+        String stagedUploadPath = null;
+
+        StringBuilder formFields = new StringBuilder();
+        for (JsonNode parameter : stagedTarget.path("parameters")) {
+            String name = parameter.path("name").asText();
+            String value = parameter.path("value").asText();
+            if ("key".equals(name)) {
+                stagedUploadPath = value;
+            }
+            formFields.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n\r\n")
+                    .append(value).append("\r\n");
+        }
+        formFields.append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"file\"; filename=\"")
+                .append(jsonlFile.getFileName()).append("\"\r\n")
+                .append("Content-Type: text/jsonl\r\n\r\n");
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(stagedTarget.path("url").asText()))
+                .timeout(requestTimeout)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.concat(
+                        HttpRequest.BodyPublishers.ofString(formFields.toString()),
+                        HttpRequest.BodyPublishers.ofFile(jsonlFile),
+                        HttpRequest.BodyPublishers.ofString("\r\n--" + boundary + "--\r\n")))
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Unable to stage bulk upload : " + response.statusCode() + " " + response.body());
+        }
+
+        return stagedUploadPath;
+    }
+
+    private String runBulkMutation(final String mutation,
+                                   final String stagedUploadPath) throws IOException, InterruptedException {
+        JsonNode bulkOperationRunMutation = graphql("""
+                mutation bulkOperationRunMutation($mutation: String!, $stagedUploadPath: String!) {
+                  bulkOperationRunMutation(mutation: $mutation, stagedUploadPath: $stagedUploadPath) {
+                    bulkOperation { id status }
+                    userErrors { field message }
+                  }
+                }
+                """, Map.of("mutation", mutation, "stagedUploadPath", stagedUploadPath))
+                .path("bulkOperationRunMutation");
+
+        checkUserErrors("bulkOperationRunMutation", bulkOperationRunMutation);
+
+        return bulkOperationRunMutation.path("bulkOperation").path("id").asText();
+    }
+
+    private JsonNode awaitBulkOperation(final String bulkOperationId) throws IOException, InterruptedException {
+        while (true) {
+            JsonNode bulkOperation = graphql("""
+                    query bulkOperation($id: ID!) {
+                      node(id: $id) {
+                        ... on BulkOperation { id status errorCode objectCount url partialDataUrl }
+                      }
+                    }
+                    """, Map.of("id", bulkOperationId)).path("node");
+
+            String status = bulkOperation.path("status").asText();
+
+            if (!"CREATED".equals(status) && !"RUNNING".equals(status) && !"CANCELING".equals(status)) {
+                return bulkOperation;
+            }
+
+            logger.info("Bulk operation " + bulkOperationId + " " + status
+                    + " (" + bulkOperation.path("objectCount").asText() + " objects)");
+            Thread.sleep(bulkPollInterval);
+        }
+    }
+
+    /**
+     * Runs a query against the GraphQL Admin API.
+     * @return data of the response
+     */
+    private JsonNode graphql(final String query,
+                             final Map<String, Object> variables) throws IOException, InterruptedException {
+        HttpRequest request = newRequest("/graphql.json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper
+                        .writeValueAsString(Map.of("query", query, "variables", variables))))
+                .build();
+
+        int attempt = 0;
+        while (true) {
+            // Only a query can be sent again, a mutation may have been applied before the server failed
+            HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString(),
+                    !query.stripLeading().startsWith("mutation"));
+
+            if (response.statusCode() != 200) {
+                throw new IOException("GraphQL request failed : " + response.statusCode() + " " + response.body());
+            }
+
+            JsonNode responseBody = objectMapper.readTree(response.body());
+
+            // A throttled request is not executed, mutations included, so it is always sent again
+            if (isThrottled(responseBody) && attempt < maxRetries) {
+                JsonNode cost = responseBody.path("extensions").path("cost");
+                JsonNode throttleStatus = cost.path("throttleStatus");
+                Duration backoff = rateLimiter.throttleBackoff(cost.path("requestedQueryCost").asDouble(),
+                        throttleStatus.path("currentlyAvailable").asDouble(),
+                        throttleStatus.path("restoreRate").asDouble(),
+                        attempt);
+                logger.warn("GraphQL request throttled, retrying in " + backoff.toMillis() + " ms");
+                Thread.sleep(backoff);
+                attempt++;
+                continue;
+            }
+
+            if (responseBody.has("errors")) {
+                throw new IOException("GraphQL request failed : " + responseBody.get("errors"));
+            }
+
+            return responseBody.path("data");
+        }
+    }
+
+    private static boolean isThrottled(final JsonNode responseBody) {
+        for (JsonNode error : responseBody.path("errors")) {
+            if ("THROTTLED".equals(error.path("extensions").path("code").asText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkUserErrors(final String operation, final JsonNode payload) throws IOException {
+        JsonNode userErrors = payload.path("userErrors");
+        if (!userErrors.isEmpty()) {
+            throw new IOException(operation + " failed : " + userErrors);
+        }
+    }
+
+    private File getShopifyProductFile(final String code, final Long productId) {
+        return new File(exportPath.toFile(), code + "-" + productId + ".json");
+    }
+
+    /**
+     * 64 bit fingerprint of the canonical JSON (keys sorted) of a Shopify payload.
+     * @param shopifyPayload
+     * @return fingerprint
+     */
+    long fingerprint(final Map<String, Object> shopifyPayload) throws JsonProcessingException {
+        return Hashing.farmHashFingerprint64()
+                .hashBytes(objectMapper.writer()
+                        .with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+                        .writeValueAsBytes(shopifyPayload))
+                .asLong();
+    }
+
+    /**
+     * Imports the exports of earlier runs into the catalog, from their code-id.json files.
+     * The id is numeric, so the last '-' separates it from codes which contain '-' themselves.
+     */
+    private void indexExportedProducts() {
+        File[] jsonFiles = exportPath.toFile().listFiles((dir, name) -> name.endsWith(".json"));
+
+        if (jsonFiles == null) {
+            return;
+        }
+
+        Map<String, CatalogStore.Exported> exports = new HashMap<>();
+
+        for (File jsonFile : jsonFiles) {
+            String name = jsonFile.getName().substring(0, jsonFile.getName().length() - ".json".length());
+            int separator = name.lastIndexOf('-');
+            if (separator > 0 && name.substring(separator + 1).chars().allMatch(Character::isDigit)) {
+                try {
+                    Map<String, Object> shopifyProduct = objectMapper.readValue(jsonFile, new TypeReference<>() {
+                    });
+                    exports.put(name.substring(0, separator), new CatalogStore.Exported(
+                            Long.valueOf(name.substring(separator + 1)),
+                            fingerprint(shopifyProduct)));
+                } catch (IOException e) {
+                    logger.warn("Unable to index " + jsonFile, e);
+                }
+            }
+        }
+
+        catalogStore.saveExported(exports);
+
+        logger.info("Indexed " + exports.size() + " exported products");
+    }
+
+    /**
+     * Collections a new product is added to : the default collection of the source, then the collections
+     * mapped to each category path of the product and to their ancestors.
+     * @param product
+     * @return collection ids
+     */
+    public Set<String> getCollectionIds(final Product product) {
+        Set<String> collectionIds = new LinkedHashSet<>();
+        if (defaultCollectionId != null) {
+            collectionIds.add(defaultCollectionId);
+        }
+        collectionIds.addAll(collectionResolver.resolveAll(productSource.getCollection(product.code())));
+        return collectionIds;
+    }
+
+    /**
+     * Maps the product to a ProductSetInput of the GraphQL Admin API.
+     * @param product
+     * @return productSetInput
+     */
+    public Map<String, Object> getShopifyProductInput(final Product product) {
+        Map<String, Object> variantMap = new HashMap<>();
+        variantMap.put("optionValues", List.of(Map.of("optionName", "Title", "name", "Default Title")));
+        variantMap.put("price", String.valueOf(product.price()));
+        if (product.discount() != null) {
+            variantMap.put("compareAtPrice", String.valueOf(product.discount()));
+        }
+        variantMap.put("inventoryPolicy", "DENY");
+        variantMap.put("taxable", true);
+        variantMap.put("inventoryItem", Map.of("tracked", true, "requiresShipping", true));
+
+        Map<String, Object> productMap = new HashMap<>();
+        productMap.put("title", product.title());
+        productMap.put("descriptionHtml", product.description());
+        productMap.put("handle", product.code());
+        productMap.put("vendor", "Dollareh");
+        productMap.put("tags", List.of("auto-imported"));
+        productMap.put("productOptions", List.of(Map.of("name", "Title",
+                "values", List.of(Map.of("name", "Default Title")))));
+        productMap.put("variants", List.of(variantMap));
+
+        return productMap;
     }
 
     public Map<String, Object> getShopifyProduct(final Product product) {
@@ -296,66 +1000,256 @@ public class Shopify {
 
     public Map<String, Object> associateCollection(final Long productId, String collectionId) throws IOException, InterruptedException {
 
-        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> response = postCollect(productId, collectionId);
+
+        return objectMapper.readValue(response.body()
+                , new TypeReference<>() {
+                });
+
+    }
+
+    /**
+     * Adds products to collections, by collection title.
+     * Titles are resolved through the collection id cache. Each product then reads its own collects,
+     * so the cost follows the products of the batch rather than the size of the store, and creates
+     * the missing ones. Products are handled on virtual threads, at most concurrency of them at a time,
+     * all sharing the rate budget of the store.
+     * @param collectionTitles titles of the collections of each product, by Shopify product id
+     * @return outcome of the association
+     */
+    public AssociationResult associateCollections(final Map<Long, ? extends Collection<String>> collectionTitles)
+            throws URISyntaxException {
+
+        Set<String> unknownTitles = new TreeSet<>();
+        Map<Long, Set<Long>> productCollectionIds = new LinkedHashMap<>();
+
+        for (Map.Entry<Long, ? extends Collection<String>> productCollections : collectionTitles.entrySet()) {
+            for (String title : productCollections.getValue()) {
+                if (title == null || title.isBlank() || unknownTitles.contains(title)) {
+                    continue;
+                }
+
+                Long collectionId = getCollectionId(title);
+
+                if (collectionId == null) {
+                    unknownTitles.add(title);
+                } else {
+                    productCollectionIds.computeIfAbsent(productCollections.getKey(), id -> new LinkedHashSet<>())
+                            .add(collectionId);
+                }
+            }
+        }
+
+        Semaphore permits = new Semaphore(concurrency);
+
+        AtomicLong created = new AtomicLong();
+        AtomicLong existing = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            productCollectionIds.forEach((productId, collectionIds) -> executor.submit(() -> {
+                try {
+                    permits.acquire();
+                    try {
+                        associateCollections(productId, collectionIds, created, existing, failed);
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.addAndGet(collectionIds.size());
+                }
+            }));
+        }
+
+        AssociationResult associationResult = new AssociationResult(created.get(), existing.get(), failed.get(), unknownTitles);
+
+        logger.info("Associated " + collectionTitles.size() + " products : " + associationResult);
+
+        return associationResult;
+    }
+
+    /**
+     * Adds the product to the collections it is not in yet.
+     */
+    private void associateCollections(final Long productId,
+                                      final Set<Long> collectionIds,
+                                      final AtomicLong created,
+                                      final AtomicLong existing,
+                                      final AtomicLong failed) throws InterruptedException {
+        Set<Long> missingCollectionIds = new LinkedHashSet<>(collectionIds);
+
+        try (Stream<Map<String, Object>> collects = streamResources("/collects.json?limit=250&product_id=" + productId,
+                "collects")) {
+            collects.forEach(collect -> {
+                if (missingCollectionIds.remove(((Number) collect.get("collection_id")).longValue())) {
+                    existing.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Unable to read the collects of product " + productId, e);
+            failed.addAndGet(missingCollectionIds.size());
+            return;
+        }
+
+        for (Long collectionId : missingCollectionIds) {
+            try {
+                HttpResponse<String> response = postCollect(productId, String.valueOf(collectionId));
+                if (response.statusCode() / 100 == 2) {
+                    created.incrementAndGet();
+                } else {
+                    logger.error("Unable to add product " + productId + " to collection "
+                            + collectionId + " : " + response.statusCode() + " " + response.body());
+                    failed.incrementAndGet();
+                }
+            } catch (IOException e) {
+                logger.error("Unable to add product " + productId + " to collection " + collectionId, e);
+                failed.incrementAndGet();
+            }
+        }
+    }
 
+    /**
+     * Resolves a collection title through the collections loaded on first use.
+     * A title which was not loaded, e.g. of a collection created since, is looked up and remembered.
+     * @param title
+     * @return collection id, null if there is no such collection
+     */
+    public Long getCollectionId(final String title) throws URISyntaxException {
+        Map<String, Long> ids = collectionIds;
+        if (ids == null) {
+            collectionIdsLock.lock();
+            try {
+                ids = collectionIds;
+                if (ids == null) {
+                    Map<String, Long> loadedIds = new ConcurrentHashMap<>();
+                    try (Stream<Map<String, Object>> collections = streamCollections()) {
+                        collections.forEach(collection -> loadedIds.put((String) collection.get("title"),
+                                ((Number) collection.get("id")).longValue()));
+                    }
+                    collectionIds = ids = loadedIds;
+                }
+            } finally {
+                collectionIdsLock.unlock();
+            }
+        }
+
+        Long collectionId = ids.get(title);
+        if (collectionId == null) {
+            collectionId = getShopifyCollection(title);
+            if (collectionId != null) {
+                ids.put(title, collectionId);
+            }
+        }
+        return collectionId;
+    }
+
+    private HttpResponse<String> postCollect(final Long productId, final String collectionId) throws IOException, InterruptedException {
         Map<String, Object> shopifyCollection = new HashMap<>(2);
 
         shopifyCollection.put("product_id", productId);
 
-
         if (collectionId != null) {
             shopifyCollection.put("collection_id",collectionId);
         }
 
-        ;
-
         // Build HTTP request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + "/collects.json"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
+        HttpRequest request = newRequest("/collects.json")
                 .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(Map.of("collect", shopifyCollection))))
                 .build();
 
         // Send request and get response
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return send(request);
+    }
 
-        return objectMapper.readValue(response.body()
-                , new TypeReference<>() {
-                });
+    /**
+     * Uploads the images of the product which are not on Shopify yet, waiting for their downloads.
+     * Images are identified by the SHA-256 of their content, so unchanged images are skipped
+     * and tracked images which are no longer part of the product are deleted.
+     * The images of the product are saved to the manifest once they are synced, and tracked
+     * even when every upload failed, so the next export retries them.
+     * @param productId
+     * @param product
+     */
+    public void createImages(final Long productId, Product product) {
+
+        boolean tracked = imageManifest.contains(productId);
 
+        Map<String, Long> uploadedImageIds = imageManifest.imageIds(productId);
+
+        Map<String, Long> syncedImageIds = new HashMap<>(uploadedImageIds);
+
+        try {
+            syncImages(productId, product, syncedImageIds);
+        } finally {
+            if (!tracked || !syncedImageIds.equals(uploadedImageIds)) {
+                imageManifest.save(productId, syncedImageIds);
+            }
+        }
     }
 
-    public void createImages(final Long productId, Product product) {
+    private void syncImages(final Long productId, final Product product, final Map<String, Long> uploadedImageIds) {
+
+        Set<String> imageHashes = new HashSet<>();
+
+        boolean allImagesHashed = true;
 
         for (String imageUrl: product.imageUrls()) {
             try {
-                File imageFile = productSource.getAssetFile(imageUrl);
-                createImage(productId, imageFile.toPath());
+                File imageFile;
+                String imageHash;
+                try {
+                    imageFile = productSource.awaitAsset(imageUrl);
+                    imageHash = ImageManifest.hash(imageFile);
+                } catch (IOException e) {
+                    allImagesHashed = false;
+                    throw e;
+                }
+                imageHashes.add(imageHash);
+
+                if (!uploadedImageIds.containsKey(imageHash)) {
+                    uploadedImageIds.put(imageHash, createImage(productId, imageFile.toPath()));
+                }
             }
-            catch (UncheckedIOException |
-                   IOException | InterruptedException e) {
-                logger.info("Unable to Upload Image for " + productId);
+            catch (UncheckedIOException | IOException e) {
+                logger.error("Unable to Upload Image for " + productId, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted uploading Image for " + productId, e);
+                return;
             }
         }
 
+        // Without every local image, a tracked image can not be told apart from a replaced one
+        if (!allImagesHashed) {
+            return;
+        }
 
+        for (Map.Entry<String, Long> uploadedImage : List.copyOf(uploadedImageIds.entrySet())) {
+            if (!imageHashes.contains(uploadedImage.getKey())) {
+                try {
+                    deleteImage(productId, uploadedImage.getValue());
+                    uploadedImageIds.remove(uploadedImage.getKey());
+                } catch (IOException e) {
+                    logger.error("Unable to Delete Image " + uploadedImage.getValue() + " of " + productId, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.error("Interrupted deleting Image " + uploadedImage.getValue() + " of " + productId, e);
+                    return;
+                }
+            }
+        }
 
     }
 
 
     public Map<String, Object> create(Map<String, Object> shopifyProduct) throws IOException, InterruptedException {
 
-        HttpClient client = HttpClient.newHttpClient();
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + "/products.json"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
+        HttpRequest request = newRequest("/products.json")
                 .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(shopifyProduct)))
                 .build();
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = send(request);
 
         return objectMapper.readValue(response.body()
                 , new TypeReference<>() {
@@ -363,32 +1257,26 @@ public class Shopify {
     }
 
     public Long getShopifyCollection(String title) throws URISyntaxException {
-        HttpClient client = HttpClient.newHttpClient();
         Long collectionId = null;
 
         URI uri = new URIBuilder(baseUrl + "/custom_collections.json")
                 .addParameter("title", title)
                 .build();
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(uri.toString()))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
+        HttpRequest request = newRequest(uri)
                 .GET()
                 .build();
 
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = send(request);
 
             if (response.statusCode() != 200) {
                 throw new RuntimeException("Failed to fetch Shopify collections: " + response.body());
             }
 
-            ObjectMapper objectMapper = new ObjectMapper();
             Map<String, List<Map<String, Object>>> responseBody = objectMapper.readValue(response.body(),
                     new TypeReference<>() {});
 
-            Map<Long, Map<String, Object>> collectionsMap = new HashMap<>();
             List<Map<String, Object>> collections = responseBody.get("custom_collections");
 
             if (collections != null) {
@@ -410,115 +1298,343 @@ public class Shopify {
      * @return collectionsMap
      */
     public Map<Long, Map<String, Object>> getShopifyCollection() {
-        HttpClient client = HttpClient.newHttpClient();
+        try (Stream<Map<String, Object>> collections = streamCollections()) {
+            Map<Long, Map<String, Object>> collectionsMap = new HashMap<>();
+            collections.forEach(collection ->
+                    collectionsMap.put(((Number) collection.get("id")).longValue(), collection));
+            return collectionsMap;
+        }
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl  + "/custom_collections.json?limit=250"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
-                .GET()
-                .build();
+    /**
+     * Streams all the shopify collections, page by page.
+     * Pages are followed through the page_info cursor of the Link header and parsed one collection at a time,
+     * so memory stays flat whatever the size of the store. Close the stream to release the current page.
+     * @return collections
+     */
+    public Stream<Map<String, Object>> streamCollections() {
+        return streamResources("/custom_collections.json?limit=250", "custom_collections");
+    }
 
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private Stream<Map<String, Object>> streamResources(final String path, final String resourceName) {
+        ResourceIterator resourceIterator = new ResourceIterator(URI.create(baseUrl + path), resourceName);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(resourceIterator,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(resourceIterator::close);
+    }
 
-            if (response.statusCode() != 200) {
-                throw new RuntimeException("Failed to fetch Shopify collections: " + response.body());
+    /**
+     * Gets the next page from the Link header.
+     * e.g. &lt;https://{shop}/admin/api/2025-01/custom_collections.json?limit=250&amp;page_info=abc&gt;; rel="next"
+     */
+    static URI nextPage(final HttpResponse<?> response) {
+        for (String link : response.headers().allValues("Link")) {
+            for (String part : link.split(",")) {
+                int start = part.indexOf('<');
+                int end = part.indexOf('>', start + 1);
+                if (start >= 0 && end > start && part.substring(end).contains("rel=\"next\"")) {
+                    return URI.create(part.substring(start + 1, end));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over the resources of a paginated REST endpoint with Jackson's streaming parser.
+     */
+    private class ResourceIterator implements Iterator<Map<String, Object>> {
+
+        private final String resourceName;
+
+        private URI nextPage;
+
+        private JsonParser parser;
+
+        private Map<String, Object> next;
+
+        ResourceIterator(final URI firstPage, final String resourceName) {
+            this.nextPage = firstPage;
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (parser == null) {
+                        if (nextPage == null) {
+                            return false;
+                        }
+                        openPage();
+                    } else if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        next = objectMapper.readValue(parser, new TypeReference<>() {
+                        });
+                    } else {
+                        close();
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException("Error fetching Shopify " + resourceName, e);
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted fetching Shopify " + resourceName, e);
             }
+        }
 
-            ObjectMapper objectMapper = new ObjectMapper();
-            Map<String, List<Map<String, Object>>> responseBody = objectMapper.readValue(response.body(),
-                    new TypeReference<>() {});
+        @Override
+        public Map<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, Object> resource = next;
+            next = null;
+            return resource;
+        }
 
-            Map<Long, Map<String, Object>> collectionsMap = new HashMap<>();
-            List<Map<String, Object>> collections = responseBody.get("custom_collections");
+        private void openPage() throws IOException, InterruptedException {
+            HttpResponse<InputStream> response = send(newRequest(nextPage).GET().build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
 
-            if (collections != null) {
-                for (Map<String, Object> collection : collections) {
-                    Long id = ((Number) collection.get("id")).longValue();
-                    collectionsMap.put(id, collection);
+            if (response.statusCode() != 200) {
+                try (InputStream body = response.body()) {
+                    throw new IOException("Failed to fetch " + nextPage + " : "
+                            + response.statusCode() + " " + new String(body.readAllBytes()));
                 }
             }
 
-            return collectionsMap;
-        } catch (Exception e) {
-            throw new RuntimeException("Error fetching Shopify collections", e);
+            nextPage = nextPage(response);
+            parser = objectMapper.getFactory().createParser(response.body());
+
+            // Move to the array of resources, skipping any other root field
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    boolean isResources = resourceName.equals(parser.currentName());
+                    if (parser.nextToken() == JsonToken.START_ARRAY && isResources) {
+                        return;
+                    }
+                    parser.skipChildren();
+                }
+            }
+            close();
+        }
+
+        void close() {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close page of " + resourceName, e);
+                }
+                parser = null;
+            }
         }
     }
 
-    private List<Map<String, Object>> getMetafields(Long collectionId) {
-        HttpClient client = HttpClient.newHttpClient();
+    /**
+     * Updates the product in place.
+     * @return response of Shopify, the product was updated only on 2xx
+     */
+    public HttpResponse<String> update(String productId, Map<String, Object> shopifyProduct) throws IOException, InterruptedException {
 
-        String metafieldsUrl = baseUrl + "/collections/" + collectionId + "/metafields.json";
+        HttpRequest request = newRequest("/products/" + productId + ".json")
+                .PUT(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(shopifyProduct)))
+                .build();
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(metafieldsUrl))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
-                .GET()
+        return send(request);
+    }
+
+    private Long createImage(Long productId, Path productImage) throws IOException, InterruptedException {
+        // Build HTTP request, the image is Base64 encoded into the JSON body while it is sent
+        HttpRequest request = newRequest("/products/" + productId + "/images.json")
+                .POST(imageBodyPublisher(productImage))
                 .build();
 
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        // Send request and get response
+        HttpResponse<String> response = send(request);
 
-            if (response.statusCode() != 200) {
-                throw new RuntimeException("Failed to fetch metafields for collection " + collectionId);
-            }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Unable to upload " + productImage + " : "
+                    + response.statusCode() + " " + response.body());
+        }
 
-            Map<String, List<Map<String, Object>>> responseBody = objectMapper.readValue(response.body(),
-                    new TypeReference<>() {
-                    });
+        // Without its id an image can not be tracked, it is uploaded again by the next export
+        JsonNode imageId = objectMapper.readTree(response.body()).path("image").path("id");
+        if (!imageId.canConvertToLong() || imageId.asLong() == 0) {
+            throw new IOException("Uploaded " + productImage + " without image id : " + response.body());
+        }
 
-            return responseBody.getOrDefault("metafields", Collections.emptyList());
-        } catch (Exception e) {
-            throw new RuntimeException("Error fetching metafields for collection " + collectionId, e);
+        return imageId.asLong();
+    }
+
+    private void deleteImage(Long productId, Long imageId) throws IOException, InterruptedException {
+        HttpRequest request = newRequest("/products/" + productId + "/images/" + imageId + ".json")
+                .DELETE()
+                .build();
+
+        HttpResponse<String> response = send(request);
+
+        if (response.statusCode() / 100 != 2 && response.statusCode() != 404) {
+            throw new IOException("Unable to delete image " + imageId + " : " + response.statusCode());
         }
     }
 
+    /**
+     * Streams {"image":{"filename":"..","attachment":"<base64>"}} without ever holding the image in memory.
+     * Each subscription (e.g. a retry) re-reads the file.
+     */
+    private HttpRequest.BodyPublisher imageBodyPublisher(final Path productImage) throws IOException {
+        byte[] head = ("{\"image\":{\"filename\":"
+                + objectMapper.writeValueAsString(productImage.getFileName().toString())
+                + ",\"attachment\":\"").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = "\"}}".getBytes(StandardCharsets.UTF_8);
 
-    public Map<String, Object> update(String productId, Map<String, Object> shopifyProduct) throws IOException, InterruptedException {
+        long contentLength = head.length + Base64InputStream.encodedLength(Files.size(productImage)) + tail.length;
 
-        HttpClient client = HttpClient.newHttpClient();
+        return HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return new SequenceInputStream(Collections.enumeration(List.of(
+                        new ByteArrayInputStream(head),
+                        new Base64InputStream(Files.newInputStream(productImage)),
+                        new ByteArrayInputStream(tail))));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }), contentLength);
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + "/products/" + productId + ".json"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
-                .PUT(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(shopifyProduct)))
-                .build();
+    private HttpRequest.Builder newRequest(final String path) {
+        return newRequest(URI.create(baseUrl + path));
+    }
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private HttpRequest.Builder newRequest(final URI uri) {
+        return HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(requestTimeout)
+                .header("X-Shopify-Access-Token", accessToken)
+                .header("Content-Type", "application/json");
+    }
 
-        return objectMapper.readValue(response.body()
-                , new TypeReference<>() {
-                });
+    private HttpResponse<String> send(final HttpRequest request) throws IOException, InterruptedException {
+        return send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private <T> HttpResponse<T> send(final HttpRequest request,
+                                     final HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        return send(request, bodyHandler, IDEMPOTENT_METHODS.contains(request.method()));
     }
 
-    private void createImage(Long productId, Path productImage) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
+    /**
+     * Sends the request at the pace of the rate limiter.
+     * Throttled (429) responses are retried with jittered backoff, server errors (5xx) only for idempotent
+     * requests : Shopify may have committed a POST before failing, retrying it would create duplicates.
+     */
+    private <T> HttpResponse<T> send(final HttpRequest request,
+                                     final HttpResponse.BodyHandler<T> bodyHandler,
+                                     final boolean idempotent) throws IOException, InterruptedException {
+        int attempt = 0;
+        while (true) {
+            rateLimiter.acquire();
+
+            HttpResponse<T> response = client.send(request, bodyHandler);
 
-        // Convert Image to Base64
-        String base64Image = Base64.getEncoder().encodeToString(Files.readAllBytes(productImage));
+            rateLimiter.onResponse(response);
 
-        // Create JSON request body
-        String requestBody = """
-        {
-          "image": {
-            "attachment": "%s"
-          }
+            int statusCode = response.statusCode();
+
+            if ((statusCode == 429 || (statusCode >= 500 && idempotent)) && attempt < maxRetries) {
+                if (response.body() instanceof InputStream body) {
+                    body.close();
+                }
+                Duration backoff = rateLimiter.backoff(attempt);
+                logger.warn(request.method() + " " + request.uri() + " returned " + statusCode
+                        + ", retrying in " + backoff.toMillis() + " ms");
+                Thread.sleep(backoff);
+                attempt++;
+            } else {
+                return response;
+            }
         }
-        """.formatted(base64Image);
+    }
 
-        // Build HTTP request
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(baseUrl + "/products/" + productId + "/images.json"))
-                .header("X-Shopify-Access-Token", System.getenv("SHOPIFY_ACCESS_TOKEN"))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
+    // Builder class
+    public static class ShopifyBuilder {
 
-        // Send request and get response
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        private final ProductSource productSource;
+
+        private String baseUrl = System.getenv("SHOPIFY_BASE_URL");
+
+        private String accessToken = System.getenv("SHOPIFY_ACCESS_TOKEN");
+
+        private Duration connectTimeout = Duration.ofSeconds(20);
+
+        private Duration requestTimeout = Duration.ofSeconds(60);
+
+        private Executor executor; // Default is the HttpClient's own executor
+
+        private ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter();
+
+        private int maxRetries = 5;
+
+        private int concurrency = 8;
+
+        private Duration bulkPollInterval = Duration.ofSeconds(5);
+
+        public ShopifyBuilder(ProductSource productSource) {
+            this.productSource = productSource;
+        }
+
+        public ShopifyBuilder baseUrl(String baseUrl) {
+            this.baseUrl = baseUrl;
+            return this;
+        }
+
+        public ShopifyBuilder accessToken(String accessToken) {
+            this.accessToken = accessToken;
+            return this;
+        }
+
+        public ShopifyBuilder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public ShopifyBuilder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public ShopifyBuilder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public ShopifyBuilder rateLimiter(ShopifyRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public ShopifyBuilder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public ShopifyBuilder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        public ShopifyBuilder bulkPollInterval(Duration bulkPollInterval) {
+            this.bulkPollInterval = bulkPollInterval;
+            return this;
+        }
+
+        public Shopify build() {
+            return new Shopify(this);
+        }
     }
 
 }
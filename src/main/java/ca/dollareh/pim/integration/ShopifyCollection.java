@@ -0,0 +1,12 @@
+package ca.dollareh.pim.integration;
+
+import java.util.List;
+
+/**
+ * Shopify collection along with the vendor category paths it collects.
+ * @param id collection id
+ * @param title collection title
+ * @param downstreamPaths value of the vendor.downstream_collection_paths metafield
+ */
+public record ShopifyCollection(Long id, String title, List<String> downstreamPaths) {
+}
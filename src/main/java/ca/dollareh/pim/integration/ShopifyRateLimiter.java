@@ -0,0 +1,204 @@
+package ca.dollareh.pim.integration;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Leaky bucket matching Shopify's REST call limit.
+ * Every request adds one call to the bucket, which drains at the store's refill rate.
+ * The X-Shopify-Shop-Api-Call-Limit header of each response corrects the capacity, and with it the
+ * refill rate, and raises the bucket level when the store counts more calls than reserved here.
+ * A Retry-After pauses every caller until the store accepts calls again.
+ * GraphQL queries are throttled by cost instead, their wait comes from the throttle status of the response.
+ */
+public class ShopifyRateLimiter {
+
+    public static final String CALL_LIMIT_HEADER = "X-Shopify-Shop-Api-Call-Limit";
+
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(500);
+
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    /**
+     * Seconds Shopify takes to drain a full bucket, whatever its capacity (40 at 2/s, 80 at 4/s).
+     */
+    private static final double DRAIN_SECONDS = 20;
+
+    // A lock rather than synchronized, so waiting virtual threads are never pinned
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongSupplier nanoClock;
+
+    private double leakRate;
+
+    private int capacity;
+
+    private double level;
+
+    private long lastLeak;
+
+    private long pausedUntil;
+
+    /**
+     * Standard Shopify plan : bucket of 40 calls, refilled at 2 calls per second.
+     */
+    public ShopifyRateLimiter() {
+        this(40, 2);
+    }
+
+    public ShopifyRateLimiter(final int capacity, final double leakRate) {
+        this(capacity, leakRate, System::nanoTime);
+    }
+
+    ShopifyRateLimiter(final int capacity, final double leakRate, final LongSupplier nanoClock) {
+        this.capacity = capacity;
+        this.leakRate = leakRate;
+        this.nanoClock = nanoClock;
+        this.lastLeak = nanoClock.getAsLong();
+        this.pausedUntil = lastLeak;
+    }
+
+    /**
+     * Blocks until the bucket has room for one more call.
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Reserves a slot in the bucket.
+     * @return nanos the caller has to wait before sending its call
+     */
+    long reserve() {
+        lock.lock();
+        try {
+            long now = nanoClock.getAsLong();
+            leak(now);
+
+            long waitNanos = 0;
+            double overflow = level + 1 - capacity;
+            if (overflow > 0) {
+                waitNanos = (long) (overflow / leakRate * NANOS_PER_SECOND);
+            }
+            waitNanos = Math.max(waitNanos, pausedUntil - now);
+
+            level++;
+            return waitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs the bucket with what the store reports.
+     * @param response
+     */
+    public void onResponse(final HttpResponse<?> response) {
+        response.headers()
+                .firstValue(CALL_LIMIT_HEADER)
+                .ifPresent(this::onCallLimit);
+
+        if (response.statusCode() == 429) {
+            onThrottled(retryAfter(response).orElse(null));
+        }
+    }
+
+    void onCallLimit(final String callLimit) {
+        int separator = callLimit.indexOf('/');
+        if (separator < 0) {
+            return;
+        }
+        try {
+            int used = Integer.parseInt(callLimit.substring(0, separator).trim());
+            int max = Integer.parseInt(callLimit.substring(separator + 1).trim());
+
+            lock.lock();
+            try {
+                leak(nanoClock.getAsLong());
+                capacity = max;
+                leakRate = max / DRAIN_SECONDS;
+                // Slots reserved by calls still in flight are not counted by the store yet
+                level = Math.max(level, used);
+            } finally {
+                lock.unlock();
+            }
+        } catch (NumberFormatException e) {
+            // Ignore malformed header, the local estimate keeps pacing
+        }
+    }
+
+    void onThrottled(final Duration retryAfter) {
+        lock.lock();
+        try {
+            long now = nanoClock.getAsLong();
+            leak(now);
+            level = Math.max(level, capacity);
+            if (retryAfter != null) {
+                pausedUntil = Math.max(pausedUntil, now + retryAfter.toNanos());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Jittered exponential backoff for the given retry attempt (starting from 0).
+     * @param attempt
+     * @return backoff
+     */
+    public Duration backoff(final int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF.toMillis(), BASE_BACKOFF.toMillis() << Math.min(attempt, 16));
+        return Duration.ofMillis(ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+    }
+
+    /**
+     * Wait before a GraphQL query throttled by its cost runs again : the points it misses,
+     * at least one, restored at the restore rate of the store.
+     * @param requestedQueryCost points the query asked for
+     * @param currentlyAvailable points left in the bucket
+     * @param restoreRate points restored per second
+     * @param attempt retry attempt (starting from 0), for the backoff used without restore rate
+     * @return wait
+     */
+    public Duration throttleBackoff(final double requestedQueryCost,
+                                    final double currentlyAvailable,
+                                    final double restoreRate,
+                                    final int attempt) {
+        if (restoreRate <= 0) {
+            return backoff(attempt);
+        }
+        double missing = Math.max(1, requestedQueryCost - currentlyAvailable);
+        return Duration.ofMillis(Math.min(MAX_BACKOFF.toMillis(), (long) Math.ceil(missing / restoreRate * 1000)));
+    }
+
+    static Optional<Duration> retryAfter(final HttpResponse<?> response) {
+        return response.headers()
+                .firstValue(RETRY_AFTER_HEADER)
+                .flatMap(value -> {
+                    try {
+                        return Optional.of(Duration.ofMillis((long) (Double.parseDouble(value.trim()) * 1000)));
+                    } catch (NumberFormatException e) {
+                        return Optional.empty();
+                    }
+                });
+    }
+
+    private void leak(final long now) {
+        double leaked = (now - lastLeak) * leakRate / NANOS_PER_SECOND;
+        level = Math.max(0, level - leaked);
+        lastLeak = now;
+    }
+}
@@ -0,0 +1,120 @@
+package ca.dollareh.pim.source;
+
+import org.jsoup.Connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads assets on virtual threads, at most parallelism of them at a time.
+ * Bodies are streamed to a temporary file, checked against their Content-Length
+ * and renamed atomically, so an asset file on disk is always complete.
+ */
+public class AssetDownloader implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Download {
+        File download(String assetUrl) throws IOException;
+    }
+
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Semaphore permits;
+
+    public AssetDownloader(final int parallelism) {
+        permits = new Semaphore(parallelism);
+    }
+
+    /**
+     * Downloader configured with ASSET_DOWNLOAD_PARALLELISM (default 8).
+     */
+    public static AssetDownloader fromEnvironment() {
+        String parallelism = System.getenv("ASSET_DOWNLOAD_PARALLELISM");
+        return new AssetDownloader(parallelism == null ? 8 : Integer.parseInt(parallelism));
+    }
+
+    /**
+     * Runs the download once a permit is free.
+     * @param assetUrl
+     * @param download
+     * @return downloaded file
+     */
+    public CompletableFuture<File> submit(final String assetUrl, final Download download) {
+        CompletableFuture<File> file = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                permits.acquire();
+                try {
+                    file.complete(download.download(assetUrl));
+                } finally {
+                    permits.release();
+                }
+            } catch (Exception e) {
+                file.completeExceptionally(e);
+            }
+        });
+        return file;
+    }
+
+    /**
+     * Streams the body of the response to the file.
+     * The response should be executed with maxBodySize(0), so large assets are not truncated.
+     * @param response
+     * @param file
+     * @return file
+     */
+    public static File save(final Connection.Response response, final File file) throws IOException {
+        Path target = file.toPath();
+        Files.createDirectories(target.toAbsolutePath().getParent());
+
+        Path tempPath = Files.createTempFile(target.toAbsolutePath().getParent(), file.getName(), ".part");
+
+        try {
+            long size = 0;
+            try (InputStream inputStream = response.bodyStream();
+                 ReadableByteChannel source = Channels.newChannel(inputStream);
+                 FileChannel destination = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                long transferred;
+                while ((transferred = destination.transferFrom(source, size, TRANSFER_SIZE)) > 0) {
+                    size += transferred;
+                }
+            }
+
+            // Encoded bodies are decoded while read, so their length differs
+            String contentLength = response.header("Content-Length");
+            if (contentLength != null && !response.hasHeader("Content-Encoding")
+                    && Long.parseLong(contentLength) != size) {
+                throw new IOException("Incomplete download of " + response.url() + " : "
+                        + size + " of " + contentLength + " bytes");
+            }
+
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        return file;
+    }
+
+    /**
+     * Completes the downloads submitted, then stops the downloader.
+     */
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
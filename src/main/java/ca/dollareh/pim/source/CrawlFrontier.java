@@ -0,0 +1,174 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+
+import org.jsoup.HttpStatusException;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Frontier of a crawl, checkpointed in the catalog as the crawl runs.
+ * A crawl which did not complete is resumed by the next one: its pending categories and SKUs
+ * are fetched again, its completed categories and fetched SKUs are not.
+ * Within a run, the products fetched are cached by code, so a SKU listed in several categories is fetched once.
+ * A category or SKU which keeps failing is abandoned after MAX_ATTEMPTS, or at once when it is gone (404),
+ * so it never keeps the crawl from completing.
+ */
+public class CrawlFrontier {
+
+    /**
+     * SKU to fetch under a category.
+     */
+    public record Sku(String code, List<String> categories) {
+    }
+
+    /**
+     * Categories and SKUs to fetch.
+     */
+    public record Pending(List<List<String>> categories, List<Sku> skus) {
+    }
+
+    /**
+     * Failed attempts at a category or SKU before the crawl abandons it.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    private final CatalogStore catalogStore;
+
+    private final String crawlId;
+
+    private final Map<String, CompletableFuture<Product>> products = new ConcurrentHashMap<>();
+
+    CrawlFrontier(final CatalogStore catalogStore) {
+        this.catalogStore = catalogStore;
+        this.crawlId = catalogStore.startCrawl();
+    }
+
+    public String crawlId() {
+        return crawlId;
+    }
+
+    /**
+     * @return what the crawl has left to fetch, the root category for a new crawl
+     */
+    public Pending pending() {
+        return toPending(catalogStore.getFrontier(crawlId));
+    }
+
+    /**
+     * Checkpoints a browsed category.
+     * @param categories the category
+     * @param skuCodes SKUs listed in the category
+     * @param subCategories sub categories of the category
+     * @return SKUs and sub categories to fetch, the ones already in the crawl are left out
+     */
+    public Pending expand(final List<String> categories,
+                          final List<String> skuCodes,
+                          final List<List<String>> subCategories) {
+        return toPending(catalogStore.expandFrontier(crawlId,
+                ProductSource.toCategoryPath(categories),
+                skuCodes,
+                subCategories.stream().map(ProductSource::toCategoryPath).toList()));
+    }
+
+    /**
+     * @param code
+     * @return true if the SKU was fetched in this crawl, under any category
+     */
+    public boolean isFetched(final String code) {
+        return catalogStore.isFetched(crawlId, code);
+    }
+
+    /**
+     * Fetches a product once per crawl.
+     * Listings of a product being fetched wait for that fetch, later ones get the cached product.
+     * A failed fetch is not cached, so the next listing fetches again.
+     * @param code
+     * @param fetch
+     * @return product
+     */
+    public Product fetchOnce(final String code, final CrawlScheduler.Request<Product> fetch) throws IOException {
+        CompletableFuture<Product> product = new CompletableFuture<>();
+        CompletableFuture<Product> fetching = products.putIfAbsent(code, product);
+
+        if (fetching == null) {
+            try {
+                product.complete(fetch.execute());
+            } catch (IOException | RuntimeException e) {
+                products.remove(code, product);
+                product.completeExceptionally(e);
+                throw e;
+            }
+            return product.join();
+        }
+
+        try {
+            return fetching.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted fetching " + code, e);
+        }
+    }
+
+    public void fetched(final Sku sku) {
+        catalogStore.markFetched(crawlId,
+                new CatalogStore.CrawlSku(sku.code(), ProductSource.toCategoryPath(sku.categories())));
+    }
+
+    /**
+     * Records a failed attempt at a category.
+     * @param categories the category
+     * @param e failure
+     * @return true to try the category again, false once it is abandoned
+     */
+    public boolean failed(final List<String> categories, final Exception e) {
+        return !catalogStore.failCategory(crawlId, ProductSource.toCategoryPath(categories), MAX_ATTEMPTS, isGone(e));
+    }
+
+    /**
+     * Records a failed attempt at a SKU.
+     * @param sku
+     * @param e failure
+     * @return true to try the SKU again, false once it is abandoned
+     */
+    public boolean failed(final Sku sku, final Exception e) {
+        return !catalogStore.failSku(crawlId,
+                new CatalogStore.CrawlSku(sku.code(), ProductSource.toCategoryPath(sku.categories())),
+                MAX_ATTEMPTS,
+                isGone(e));
+    }
+
+    public void complete() {
+        catalogStore.completeCrawl(crawlId);
+    }
+
+    /**
+     * @param e
+     * @return true when trying again can not succeed : the page is not found, or its url is invalid
+     */
+    private static boolean isGone(final Exception e) {
+        return (e instanceof HttpStatusException httpStatusException && httpStatusException.getStatusCode() == 404)
+                || e instanceof URISyntaxException;
+    }
+
+    private static Pending toPending(final CatalogStore.Frontier frontier) {
+        return new Pending(frontier.categoryPaths().stream()
+                .map(ProductSource::toCategories)
+                .toList(),
+                frontier.skus().stream()
+                        .map(sku -> new Sku(sku.code(), ProductSource.toCategories(sku.categoryPath())))
+                        .toList());
+    }
+}
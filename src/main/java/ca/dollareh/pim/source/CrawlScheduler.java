@@ -0,0 +1,137 @@
+package ca.dollareh.pim.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of a crawl, run on virtual threads.
+ * Tasks (a category page, a SKU page) are submitted as they are found and run concurrently,
+ * while every request goes through fetch, within the limits of a {@link HostLimiter}.
+ */
+public class CrawlScheduler implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Task {
+        void run() throws IOException, URISyntaxException;
+    }
+
+    @FunctionalInterface
+    public interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    final Logger logger = LoggerFactory.getLogger(CrawlScheduler.class);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final HostLimiter hostLimiter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition idle = lock.newCondition();
+
+    private int pending;
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * @param maxInFlightPerHost requests in flight at a time to one host
+     * @param requestsPerSecond requests started per second, 0 for no limit
+     */
+    public CrawlScheduler(final int maxInFlightPerHost, final double requestsPerSecond) {
+        this(new HostLimiter(maxInFlightPerHost, requestsPerSecond));
+    }
+
+    /**
+     * @param hostLimiter limits of the hosts, shared with the other requests of the source
+     */
+    public CrawlScheduler(final HostLimiter hostLimiter) {
+        this.hostLimiter = hostLimiter;
+    }
+
+    /**
+     * Runs the task on a virtual thread. Once a task failed, new tasks are dropped.
+     * @param task
+     */
+    public void submit(final Task task) {
+        if (failure.get() != null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                if (failure.compareAndSet(null, e)) {
+                    logger.error("Crawl failed", e);
+                }
+            } finally {
+                lock.lock();
+                try {
+                    if (--pending == 0) {
+                        idle.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes a request within the limits of the host of the url.
+     * @param url
+     * @param request
+     * @return result of the request
+     */
+    public <T> T fetch(final String url, final Request<T> request) throws IOException {
+        return hostLimiter.fetch(url, request);
+    }
+
+    /**
+     * Waits until every submitted task, and the tasks they submitted, completed.
+     * @throws IOException first failure of a task
+     */
+    public void await() throws IOException, URISyntaxException {
+        lock.lock();
+        try {
+            while (pending > 0) {
+                idle.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted awaiting crawl", e);
+        } finally {
+            lock.unlock();
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException ioException) {
+            throw ioException;
+        } else if (e instanceof URISyntaxException uriSyntaxException) {
+            throw uriSyntaxException;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,95 @@
+package ca.dollareh.pim.source;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits of the requests sent to the hosts of a source : requests in flight per host
+ * and a requests per second budget. Shared by every request of the source, pages and assets alike.
+ */
+public class HostLimiter {
+
+    private final int maxInFlightPerHost;
+
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * Nanos between two requests, 0 when requests are not paced.
+     */
+    private final long interval;
+
+    // A lock rather than synchronized, so waiting virtual threads are never pinned
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long nextSlot = System.nanoTime();
+
+    /**
+     * @param maxInFlightPerHost requests in flight at a time to one host
+     * @param requestsPerSecond requests started per second, 0 for no limit
+     */
+    public HostLimiter(final int maxInFlightPerHost, final double requestsPerSecond) {
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.interval = requestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0;
+    }
+
+    /**
+     * Limiter configured with CRAWL_MAX_IN_FLIGHT_PER_HOST (default 4)
+     * and CRAWL_REQUESTS_PER_SECOND (default 8).
+     */
+    public static HostLimiter fromEnvironment() {
+        String maxInFlightPerHost = System.getenv("CRAWL_MAX_IN_FLIGHT_PER_HOST");
+        String requestsPerSecond = System.getenv("CRAWL_REQUESTS_PER_SECOND");
+        return new HostLimiter(maxInFlightPerHost == null ? 4 : Integer.parseInt(maxInFlightPerHost),
+                requestsPerSecond == null ? 8 : Double.parseDouble(requestsPerSecond));
+    }
+
+    /**
+     * Executes a request within the limits of the host of the url.
+     * @param url
+     * @param request
+     * @return result of the request
+     */
+    public <T> T fetch(final String url, final CrawlScheduler.Request<T> request) throws IOException {
+        Semaphore permits = hostPermits.computeIfAbsent(URI.create(url).getHost(),
+                host -> new Semaphore(maxInFlightPerHost));
+        try {
+            permits.acquire();
+            try {
+                long delay = reserve();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                return request.execute();
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted fetching " + url, e);
+        }
+    }
+
+    /**
+     * Reserves the next request slot.
+     * @return nanos to wait for it
+     */
+    private long reserve() {
+        if (interval == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            long slot = Math.max(now, nextSlot);
+            nextSlot = slot + interval;
+            return slot - now;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
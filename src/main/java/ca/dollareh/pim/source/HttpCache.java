@@ -0,0 +1,239 @@
+package ca.dollareh.pim.source;
+
+import com.google.common.hash.Hashing;
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On disk cache of pages, revalidated with conditional GETs.
+ * Each entry is a single file holding the ETag / Last-Modified the page was served with, then its body,
+ * so an entry is always replaced as a whole. Requests for a cached page send If-None-Match /
+ * If-Modified-Since, and a 304 is answered from disk.
+ * Entries are evicted least recently used first once the cache outgrows its size.
+ */
+public class HttpCache {
+
+    /**
+     * Parses a page body, read from the network or from disk.
+     */
+    @FunctionalInterface
+    public interface BodyParser<T> {
+        T parse(InputStream body, String charset, String url) throws IOException;
+    }
+
+    private static final String ENTRY = ".entry";
+
+    private static final String TEMP = ".tmp";
+
+    final Logger logger = LoggerFactory.getLogger(HttpCache.class);
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    /**
+     * Entry size by entry key, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    /**
+     * @param directory directory of the entries
+     * @param maxBytes entries kept, at most
+     */
+    public HttpCache(final Path directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        directory.toFile().mkdirs();
+
+        // Left over by stores which did not complete
+        File[] tempFiles = directory.toFile().listFiles((dir, name) -> name.endsWith(TEMP));
+        if (tempFiles != null) {
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+        }
+
+        File[] entryFiles = directory.toFile().listFiles((dir, name) -> name.endsWith(ENTRY));
+
+        if (entryFiles != null) {
+            Arrays.sort(entryFiles, Comparator.comparingLong(File::lastModified));
+            for (File entryFile : entryFiles) {
+                String key = entryFile.getName().substring(0, entryFile.getName().length() - ENTRY.length());
+                entries.put(key, entryFile.length());
+                size += entryFile.length();
+            }
+        }
+    }
+
+    /**
+     * Cache in the directory, bounded by HTTP_CACHE_MAX_BYTES (default 512 MB).
+     * @param directory
+     */
+    public static HttpCache fromEnvironment(final Path directory) {
+        String maxBytes = System.getenv("HTTP_CACHE_MAX_BYTES");
+        return new HttpCache(directory, maxBytes == null ? 512L * 1024 * 1024 : Long.parseLong(maxBytes));
+    }
+
+    /**
+     * Gets a page, from disk when the server answers it was not modified.
+     * @param session
+     * @param url
+     * @return page
+     */
+    public Document get(final Connection session, final String url) throws IOException {
+        return get(session, url, Jsoup::parse);
+    }
+
+    /**
+     * Gets a page as the parser reads it, from disk when the server answers it was not modified.
+     * @param session
+     * @param url
+     * @param parser
+     * @return parsed page
+     */
+    public <T> T get(final Connection session, final String url, final BodyParser<T> parser) throws IOException {
+        String key = Hashing.sha256().hashString(url, StandardCharsets.UTF_8).toString();
+
+        Path entryPath = directory.resolve(key + ENTRY);
+
+        Connection request = session.newRequest(url);
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(entryPath)))) {
+            Properties meta = readMeta(inputStream);
+            if (meta.getProperty("etag") != null) {
+                request.header("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta.getProperty("lastModified") != null) {
+                request.header("If-Modified-Since", meta.getProperty("lastModified"));
+            }
+        } catch (NoSuchFileException e) {
+            // Not cached
+        }
+
+        Connection.Response response = request.execute();
+
+        if (response.statusCode() == 304) {
+            // The entry may have been replaced since, its meta and body still go together
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(entryPath)))) {
+                Properties meta = readMeta(inputStream);
+                touch(key, entryPath);
+                return parser.parse(inputStream, meta.getProperty("charset"), url);
+            } catch (NoSuchFileException e) {
+                // Evicted while revalidating
+                Connection.Response fullResponse = session.newRequest(url).execute();
+                return parser.parse(fullResponse.bodyStream(), fullResponse.charset(), url);
+            }
+        }
+
+        byte[] body = response.bodyAsBytes();
+
+        if (response.hasHeader("ETag") || response.hasHeader("Last-Modified")) {
+            store(key, entryPath, body, response);
+        }
+
+        return parser.parse(new ByteArrayInputStream(body), response.charset(), url);
+    }
+
+    /**
+     * @return bytes of the entries in the cache
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private void store(final String key,
+                       final Path entryPath,
+                       final byte[] body,
+                       final Connection.Response response) throws IOException {
+        Properties meta = new Properties();
+        if (response.header("ETag") != null) {
+            meta.setProperty("etag", response.header("ETag"));
+        }
+        if (response.header("Last-Modified") != null) {
+            meta.setProperty("lastModified", response.header("Last-Modified"));
+        }
+        if (response.charset() != null) {
+            meta.setProperty("charset", response.charset());
+        }
+        meta.setProperty("url", response.url().toString());
+
+        ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+        meta.store(metaBytes, null);
+
+        // Each store writes its own temp file, concurrent stores of a page never mix their writes
+        Path tempPath = Files.createTempFile(directory, key, TEMP);
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                outputStream.writeInt(metaBytes.size());
+                metaBytes.writeTo(outputStream);
+                outputStream.write(body);
+            }
+            Files.move(tempPath, entryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        long entrySize = Integer.BYTES + metaBytes.size() + body.length;
+
+        synchronized (this) {
+            Long previousSize = entries.put(key, entrySize);
+            size += entrySize - (previousSize == null ? 0 : previousSize);
+            evict();
+        }
+    }
+
+    private static Properties readMeta(final DataInputStream inputStream) throws IOException {
+        Properties meta = new Properties();
+        meta.load(new ByteArrayInputStream(inputStream.readNBytes(inputStream.readInt())));
+        return meta;
+    }
+
+    /**
+     * Marks the entry as used, also on disk so the order survives restarts.
+     */
+    private void touch(final String key, final Path entryPath) throws IOException {
+        synchronized (this) {
+            entries.get(key);
+        }
+        Files.setLastModifiedTime(entryPath, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            Files.deleteIfExists(directory.resolve(eldest.getKey() + ENTRY));
+            size -= eldest.getValue();
+            iterator.remove();
+            logger.debug("Evicted " + eldest.getKey());
+        }
+    }
+}
@@ -7,14 +7,15 @@ import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public class MultiCraft extends ProductSource {
@@ -23,21 +24,32 @@ public class MultiCraft extends ProductSource {
 
     private final Connection session;
 
+    private final HttpCache httpCache;
+
+    /**
+     * Limits of multicraft.ca, shared by the crawl and the asset downloads.
+     */
+    private final HostLimiter hostLimiter = HostLimiter.fromEnvironment();
+
     MultiCraft(final Consumer<Product> newProductConsumer,
                final Consumer<Product> modifiedProductConsumer) {
         super(newProductConsumer, modifiedProductConsumer);
         session = Jsoup.newSession()
                 .timeout(45 * 1000)
                 .maxBodySize(5 * 1024 * 1024);
+        httpCache = HttpCache.fromEnvironment(Path.of("workspace/cache/" + getClass().getSimpleName()));
     }
 
     @Override
     protected void browse() throws IOException, URISyntaxException {
+        CrawlFrontier frontier = resumeCrawl();
 
+        try (CrawlScheduler scheduler = new CrawlScheduler(hostLimiter)) {
+            schedule(frontier.pending(), frontier, scheduler);
+            scheduler.await();
+        }
 
-        browse(new ArrayList<>(), session);
-
-
+        frontier.complete();
     }
 
     protected void logout() throws IOException {
@@ -64,41 +76,94 @@ public class MultiCraft extends ProductSource {
         File imageFile = getAssetFile(assetUrl);
 
         if(!imageFile.exists()) {
-            imageFile.getParentFile().mkdirs();
-            Connection.Response resultImageResponse = session
+            // Images may be larger than the page limit of the session
+            hostLimiter.fetch(BASE_URL + assetUrl, () -> AssetDownloader.save(session
                     .newRequest(BASE_URL + assetUrl)
                     .ignoreContentType(true)
-                    .execute();
-            FileOutputStream out = new FileOutputStream(imageFile);
-            out.write(resultImageResponse.bodyAsBytes());  // resultImageResponse.body() is where the image's contents are.
-            out.close();
+                    .maxBodySize(0)
+                    .execute(), imageFile));
         }
         return imageFile;
     }
 
+    private void schedule(final CrawlFrontier.Pending pending,
+                          final CrawlFrontier frontier,
+                          final CrawlScheduler scheduler) {
+        for (List<String> categories : pending.categories()) {
+            scheduleCategory(categories, frontier, scheduler);
+        }
+        for (CrawlFrontier.Sku sku : pending.skus()) {
+            scheduleSku(sku, frontier, scheduler);
+        }
+    }
 
-    public void browse(final List<String> categoryPaths, Connection session) throws IOException, URISyntaxException {
-
-        Document document = getHTMLDocument(session, "/en/brand" + (categoryPaths.isEmpty()? "" : "/subbrands?code=" + categoryPaths.getLast()));
-
-        // Get Products
-
-        Elements skusEls = document.select("#skusCards>li");
+    /**
+     * Schedules a category, tried again when it fails until the frontier abandons it.
+     */
+    private void scheduleCategory(final List<String> categories,
+                                  final CrawlFrontier frontier,
+                                  final CrawlScheduler scheduler) {
+        scheduler.submit(() -> {
+            try {
+                browse(categories, frontier, scheduler);
+            } catch (IOException | URISyntaxException e) {
+                if (frontier.failed(categories, e)) {
+                    logger.warn("Unable to browse " + categories + ", trying again", e);
+                    scheduleCategory(categories, frontier, scheduler);
+                } else {
+                    logger.error("Abandoned category " + categories, e);
+                }
+            }
+        });
+    }
 
-        skusEls.stream().parallel().forEach(skusEl -> {
+    /**
+     * Schedules a SKU, tried again when it fails until the frontier abandons it.
+     */
+    private void scheduleSku(final CrawlFrontier.Sku sku,
+                             final CrawlFrontier frontier,
+                             final CrawlScheduler scheduler) {
+        scheduler.submit(() -> {
             try {
-                onProductDiscovery(categoryPaths,
-                        getProduct(skusEl.selectFirst(".summary-id").text().trim(), session));
+                fetchSku(sku, frontier, scheduler);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (frontier.failed(sku, e)) {
+                    logger.warn("Unable to fetch " + sku.code() + ", trying again", e);
+                    scheduleSku(sku, frontier, scheduler);
+                } else {
+                    logger.error("Abandoned SKU " + sku.code() + " of " + sku.categories(), e);
+                }
             }
         });
+    }
+
+    /**
+     * Browses a category, checkpointing its SKUs and sub categories before scheduling them as their own tasks.
+     * @param categoryPaths
+     * @param frontier
+     * @param scheduler
+     */
+    public void browse(final List<String> categoryPaths,
+                       final CrawlFrontier frontier,
+                       final CrawlScheduler scheduler) throws IOException, URISyntaxException {
+
+        Document document = getHTMLDocument(scheduler, "/en/brand" + (categoryPaths.isEmpty()? "" : "/subbrands?code=" + categoryPaths.getLast()));
+
+        // Get Products
+
+        Map<String, String> cards = new LinkedHashMap<>();
+
+        for (Element skusEl : document.select("#skusCards>li")) {
+            cards.put(skusEl.selectFirst(".summary-id").text().trim(), skusEl.text());
+        }
+
+        List<String> skuCodes = selectListings(categoryPaths, cards);
 
         // Get Sub Categories
 
-        Elements brandsEls = document.select("ul.brandsList>li>a");
+        List<List<String>> subCategories = new ArrayList<>();
 
-        for (Element brandsAnchorEl : brandsEls) {
+        for (Element brandsAnchorEl : document.select("ul.brandsList>li>a")) {
             new URIBuilder(brandsAnchorEl.attr("href"))
                     .getQueryParams()
                     .stream()
@@ -106,91 +171,49 @@ public class MultiCraft extends ProductSource {
                     .findFirst()
                     .map(NameValuePair::getValue)
                     .ifPresent(code -> {
-                        try {
-                            List<String> subCategoryPath = new ArrayList<>(categoryPaths);
-                            subCategoryPath.add(code.trim());
-                            browse(subCategoryPath, session);
-                        } catch (IOException | URISyntaxException e) {
-                            throw new RuntimeException(e);
-                        }
+                        List<String> subCategoryPath = new ArrayList<>(categoryPaths);
+                        subCategoryPath.add(code.trim());
+                        subCategories.add(subCategoryPath);
                     });
         }
+
+        schedule(frontier.expand(categoryPaths, skuCodes, subCategories), frontier, scheduler);
+    }
+
+    /**
+     * Fetches a SKU listed in a category.
+     * Listings sharing a SKU share its fetch, each one records the category of the product.
+     * A SKU fetched before this crawl was resumed only gets its category recorded.
+     */
+    private void fetchSku(final CrawlFrontier.Sku sku,
+                          final CrawlFrontier frontier,
+                          final CrawlScheduler scheduler) throws IOException {
+        if (frontier.isFetched(sku.code())) {
+            onCategoryMembership(sku.categories(), sku.code());
+        } else {
+            onProductDiscovery(sku.categories(),
+                    frontier.fetchOnce(sku.code(), () -> getProduct(sku.code(), scheduler)));
+            onListingFetched(sku.code());
+        }
+        frontier.fetched(sku);
     }
 
     /**
      * Get Product from Multicraft.
+     * The SKU page is streamed through the extractor, without building its DOM.
      * @param productCode
      * @return Product
      * @throws IOException
      */
     private Product getProduct(final String productCode,
-                               Connection session) throws IOException {
-
-        Document doc = getHTMLDocument(session, "/en/brand/sku?id=" + productCode);
-
-        Elements imageEls = doc.select("#img-previews>li>img");
-
-        String[] imageUrls = new String[imageEls.size()];
-
-        for (int i = 0; i < imageEls.size(); i++) {
-            imageUrls[i] = imageEls.get(i).attr("src").split("\\?")[0];
-        }
-
-        Elements fieldEls = doc.select("div.details-brief > .row");
-
-        float price = 0;
-        float discount = 0;
-
-        Long upc = null;
-
-        Integer invertyQty = 0;
-
-        for (Element fieldEl : fieldEls) {
-            if (fieldEl.selectFirst(".hdr").text().equals("unit price")) {
-
-                String priceText = fieldEl
-                        .selectFirst(".vlu")
-                        .text()
-                        .replace("$", "");
-                if (priceText.contains(" ")) {
-                    String[] spli = priceText.split(" ");
-                    price = Float.parseFloat(spli[0]);
-                    discount = Float.parseFloat(spli[1]);
-                } else {
-                    price = Float.parseFloat(priceText);
-                }
-
-            } else if (fieldEl.selectFirst(".hdr").text().equals("pack")) {
-                String priceText = fieldEl
-                        .selectFirst(".vlu")
-                        .text();
-
-                invertyQty = Integer.parseInt(priceText);
-
-            } else if (fieldEl.selectFirst(".hdr").text().equals("UPC")) {
-                String upcTxt = fieldEl
-                        .selectFirst(".vlu")
-                        .text();
-                if (!upcTxt.trim().isEmpty()) {
-                    upc = Long.parseLong(upcTxt);
-                }
-
-            }
-        }
+                               final CrawlScheduler scheduler) throws IOException {
+        String url = BASE_URL + "/en/brand/sku?id=" + productCode;
 
-        return new Product(
-                productCode
-                , doc.selectFirst(".details-desc") == null ? null : doc.selectFirst(".details-desc").text()
-                , doc.selectFirst(".details-blurb") == null ? null : doc.selectFirst(".details-blurb").text()
-                , upc
-                , invertyQty
-                , price
-                , discount
-                , imageUrls
-        );
+        return scheduler.fetch(url, () -> httpCache.get(session, url,
+                (body, charset, baseUri) -> SkuPageExtractor.extract(productCode, body, charset, baseUri)));
     }
 
-    private Document getHTMLDocument(Connection session, final String url) throws IOException {
-        return session.newRequest(BASE_URL + url).get();
+    private Document getHTMLDocument(final CrawlScheduler scheduler, final String url) throws IOException {
+        return scheduler.fetch(BASE_URL + url, () -> httpCache.get(session, BASE_URL + url));
     }
 }
@@ -1,8 +1,10 @@
 package ca.dollareh.pim.source;
 
+import ca.dollareh.pim.catalog.CatalogStore;
 import ca.dollareh.pim.model.Product;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
 import jakarta.validation.ConstraintViolation;
 import jakarta.validation.Validation;
 import jakarta.validation.Validator;
@@ -12,16 +14,24 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-public abstract class ProductSource {
+public abstract class ProductSource implements AutoCloseable {
 
     public static final String COLLECTION_SEPARATOR = "-";
 
@@ -40,6 +50,33 @@ public abstract class ProductSource {
 
     private final ObjectMapper objectMapper;
 
+    /**
+     * Extracted and enriched products of this source.
+     */
+    private final CatalogStore catalogStore;
+
+    /**
+     * Listings whose card did not change since the last crawl are not fetched again.
+     */
+    private final boolean incremental;
+
+    /**
+     * Unchanged listings are fetched anyway on one day out of refreshDays, 0 for never.
+     */
+    private final long refreshDays;
+
+    /**
+     * Fingerprints of the new or changed listing cards selected, kept once their SKU page is fetched.
+     */
+    private final Map<String, Long> pendingListingCards = new ConcurrentHashMap<>();
+
+    private final AssetDownloader assetDownloader = AssetDownloader.fromEnvironment();
+
+    /**
+     * Asset downloads in flight, by asset url.
+     */
+    private final Map<String, CompletableFuture<File>> assetDownloads = new ConcurrentHashMap<>();
+
     protected ProductSource(final Consumer<Product> newProductConsumer,
                             final Consumer<Product> modifiedProductConsumer) {
         this.newProductConsumer = newProductConsumer;
@@ -47,6 +84,30 @@ public abstract class ProductSource {
 
         objectMapper = new ObjectMapper();
         objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        catalogStore = new CatalogStore(Path.of("workspace/catalog/" + getClass().getSimpleName()));
+        if (catalogStore.isEmpty()) {
+            importWorkspace();
+        }
+
+        incremental = !"false".equalsIgnoreCase(System.getenv("CRAWL_INCREMENTAL"));
+
+        String fullRefreshFraction = System.getenv("CRAWL_FULL_REFRESH_FRACTION");
+        double fraction = fullRefreshFraction == null ? 0.1 : Double.parseDouble(fullRefreshFraction);
+        refreshDays = fraction > 0 ? Math.max(1, Math.round(1 / fraction)) : 0;
+    }
+
+    public CatalogStore getCatalogStore() {
+        return catalogStore;
+    }
+
+    /**
+     * Completes the asset downloads queued, then closes the catalog.
+     */
+    @Override
+    public void close() {
+        assetDownloader.close();
+        catalogStore.close();
     }
 
     // Use a builder to instantiate ProductSource
@@ -54,54 +115,51 @@ public abstract class ProductSource {
         return new ProductSourceBuilder(productSourceClassr);
     }
 
+    /**
+     * Merges the transformations into the extracted products.
+     * Transformations come from the imported vendor sheet, a JSON file in the transform directory
+     * takes precedence over the imported row of the same product.
+     */
     private void enrich() {
         Validator validator = Validation.buildDefaultValidatorFactory()
                 .getValidator();
 
-        File[] transformedFiles = transformPath.toFile().listFiles(pathname -> pathname.getName().endsWith(".json"));
-
-        Arrays.stream(transformedFiles)
-                .parallel()
-                .forEach(transformedJsonFile -> {
-                    String productCode = transformedJsonFile.getName().replaceAll(".json","");
-                    try {
-                        List<File> originalJsonFiles = findOriginalProductJson(productCode);
-
-                        if (!originalJsonFiles.isEmpty()) {
-
-                            File originalJsonFile = originalJsonFiles.get(0);
+        Map<String, Product> transformProducts = new HashMap<>();
+        for (Product transformProduct : catalogStore.getTransforms()) {
+            transformProducts.put(transformProduct.code(), transformProduct);
+        }
 
-                            Product originalProduct = objectMapper
-                                    .readValue(originalJsonFile, Product.class);
+        File[] transformedFiles = transformPath.toFile().listFiles(pathname -> pathname.getName().endsWith(".json"));
 
-                            File enrichedProductCollectionsFile = new File(enrichmentPath.toFile(),
-                                    originalProduct.code() + ".csv");
+        if (transformedFiles != null) {
+            for (File transformedJsonFile : transformedFiles) {
+                try {
+                    transformProducts.put(transformedJsonFile.getName().replaceAll(".json", ""),
+                            objectMapper.readValue(transformedJsonFile, Product.class));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
 
-                            enrichedProductCollectionsFile.getParentFile().mkdirs();
+        Queue<Product> enrichedProducts = new ConcurrentLinkedQueue<>();
 
-                            Files.writeString(enrichedProductCollectionsFile.toPath(), originalJsonFiles.stream().map(file ->
-                                    file.getName()
-                                            .replaceFirst((originalProduct.code()+ COLLECTION_SEPARATOR),"")
-                                            .replaceFirst(".json","").toLowerCase()
+        try {
+            transformProducts.entrySet()
+                    .parallelStream()
+                    .forEach(transform -> {
+                        String productCode = transform.getKey();
 
-                            ).collect(Collectors.joining("\n")));
+                        Product originalProduct = catalogStore.getProduct(productCode);
 
-                            Product transformProduct = objectMapper
-                                    .readValue(transformedJsonFile, Product.class);
+                        if (originalProduct != null) {
 
-                            Product enrichedProduct = originalProduct.merge(transformProduct);
+                            Product enrichedProduct = originalProduct.merge(transform.getValue());
 
                             Set<ConstraintViolation<Product>> violations = validator.validate(enrichedProduct);
 
                             if(violations.isEmpty()) {
-                                File enrichedProductFile = new File(enrichmentPath.toFile(),
-                                        originalProduct.code() + ".json");
-
-                                enrichedProductFile.getParentFile().mkdirs();
-
-                                downloadAssets(enrichedProduct);
-
-                                Files.writeString(enrichedProductFile.toPath(), objectMapper.writeValueAsString(enrichedProduct));
+                                enrichedProducts.add(enrichedProduct);
                             }
                             else {
                                 for (ConstraintViolation<Product> violation : violations) {
@@ -111,10 +169,10 @@ public abstract class ProductSource {
                         } else {
                             logger.info(this.getClass().getSimpleName() + " does not contain product " + productCode);
                         }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                    });
+        } finally {
+            catalogStore.saveEnrichedProducts(enrichedProducts);
+        }
     }
 
     protected abstract void login() throws IOException;
@@ -125,68 +183,224 @@ public abstract class ProductSource {
 
     protected abstract File downloadAsset(final String assetUrl) throws IOException;
 
-    protected void downloadAssets(final Product product) throws IOException {
-        for (String imageUrl: product.imageUrls()) {
-            downloadAsset(imageUrl);
+    /**
+     * Queues the downloads of the images of the product, without waiting for them.
+     * @param product
+     */
+    protected void prefetchAssets(final Product product) {
+        if (product.imageUrls() != null) {
+            for (String imageUrl : product.imageUrls()) {
+                prefetchAsset(imageUrl);
+            }
+        }
+    }
+
+    /**
+     * Waits for the asset, downloading it if it was not prefetched.
+     * @param assetUrl
+     * @return downloaded file
+     */
+    public File awaitAsset(final String assetUrl) throws IOException {
+        try {
+            return prefetchAsset(assetUrl).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Only downloads in flight are tracked, a finished asset is found on disk by downloadAsset.
+     */
+    private CompletableFuture<File> prefetchAsset(final String assetUrl) {
+        CompletableFuture<File> pending = new CompletableFuture<>();
+        CompletableFuture<File> download = assetDownloads.putIfAbsent(assetUrl, pending);
+        if (download != null) {
+            return download;
+        }
+        assetDownloader.submit(assetUrl, this::downloadAsset).whenComplete((file, e) -> {
+            assetDownloads.remove(assetUrl, pending);
+            if (e == null) {
+                pending.complete(file);
+            } else {
+                logger.error("Unable to download " + assetUrl, e);
+                pending.completeExceptionally(e);
+            }
+        });
+        return pending;
+    }
+
+    /**
+     * Waits for the asset downloads in flight, including those queued while waiting.
+     * Failed downloads are logged, they are tried again when the asset is awaited.
+     */
+    protected void awaitAssetDownloads() {
+        while (!assetDownloads.isEmpty()) {
+            CompletableFuture.allOf(assetDownloads.values().toArray(CompletableFuture[]::new))
+                    .exceptionally(e -> null)
+                    .join();
         }
     }
 
     protected void onProductDiscovery(final List<String> categories,
                                       final Product product) throws IOException {
 
-        String category = categories.isEmpty() ? "" : categories.stream()
-                .collect(Collectors.joining(COLLECTION_SEPARATOR));
+        prefetchAssets(product);
+
+        switch (catalogStore.saveProduct(product, toCategoryPath(categories))) {
+            case NEW -> newProductConsumer.accept(product);
+            case MODIFIED -> modifiedProductConsumer.accept(product);
+            case UNCHANGED -> {
+            }
+        }
+    }
 
-        Path productJsonPath = new File(path.toFile(), product.code() + COLLECTION_SEPARATOR + category + ".json").toPath();
+    /**
+     * Records that an already fetched product is also listed under the categories.
+     * @param categories
+     * @param code
+     */
+    protected void onCategoryMembership(final List<String> categories,
+                                        final String code) {
+        catalogStore.saveCategoryPath(code, toCategoryPath(categories));
+    }
 
-        if (productJsonPath.toFile().exists()) {
-            String productJsonTxt = objectMapper
-                    .writeValueAsString(product);
-            if (!productJsonTxt.equals(Files.readString(productJsonPath))) {
-                Files.writeString(productJsonPath,
-                        productJsonTxt);
-                modifiedProductConsumer.accept(product);
+    /**
+     * Selects the listings of a category whose SKU pages have to be fetched.
+     * In incremental mode (CRAWL_INCREMENTAL, on unless false), a listing whose card is the same as
+     * in the last crawl is not fetched, only its category is recorded. Each day a rotating share
+     * of them, CRAWL_FULL_REFRESH_FRACTION (default 0.1), is fetched anyway, so that changes
+     * the cards do not show are picked up too.
+     * The card of a selected listing is only kept once its product is fetched, see {@link #onListingFetched(String)}.
+     * @param categories
+     * @param cards text of the listing cards, by SKU code
+     * @return codes of the SKUs to fetch
+     */
+    protected List<String> selectListings(final List<String> categories,
+                                          final Map<String, String> cards) {
+        Map<String, Long> fingerprints = new LinkedHashMap<>();
+        cards.forEach((code, card) -> fingerprints.put(code,
+                Hashing.farmHashFingerprint64().hashString(card, StandardCharsets.UTF_8).asLong()));
+
+        Map<String, Long> lastFingerprints = catalogStore.getListingCards(fingerprints.keySet());
+
+        long refreshDay = refreshDays == 0 ? -1 : LocalDate.now().toEpochDay() % refreshDays;
+
+        List<String> codes = new ArrayList<>();
+
+        fingerprints.forEach((code, fingerprint) -> {
+            boolean unchanged = fingerprint.equals(lastFingerprints.get(code)) && catalogStore.contains(code);
+
+            if (incremental && unchanged && Math.floorMod(code.hashCode(), Math.max(refreshDays, 1)) != refreshDay) {
+                onCategoryMembership(categories, code);
+            } else {
+                codes.add(code);
+                if (!unchanged) {
+                    pendingListingCards.put(code, fingerprint);
+                }
             }
-        } else {
-            productJsonPath.toFile().getParentFile().mkdirs();
-            Files.writeString(productJsonPath,
-                    objectMapper
-                            .writeValueAsString(product));
-            newProductConsumer.accept(product);
+        });
+
+        return codes;
+    }
+
+    /**
+     * Keeps the card of a listing once its product is fetched and discovered.
+     * A listing whose fetch failed keeps its last card, so the next crawl fetches it again.
+     * @param code
+     */
+    protected void onListingFetched(final String code) {
+        Long fingerprint = pendingListingCards.remove(code);
+        if (fingerprint != null) {
+            catalogStore.saveListingCards(Map.of(code, fingerprint));
         }
     }
 
+    /**
+     * Resumes the crawl of this source which did not complete, or starts a new one.
+     * @return frontier of the crawl
+     */
+    protected CrawlFrontier resumeCrawl() {
+        CrawlFrontier frontier = new CrawlFrontier(catalogStore);
+        logger.info("Crawling " + getClass().getSimpleName() + " as " + frontier.crawlId());
+        return frontier;
+    }
+
+    static String toCategoryPath(final List<String> categories) {
+        return String.join(COLLECTION_SEPARATOR, categories);
+    }
+
+    static List<String> toCategories(final String categoryPath) {
+        return categoryPath.isEmpty() ? List.of() : List.of(categoryPath.split(COLLECTION_SEPARATOR));
+    }
+
     public File getAssetFile(final String assetUrl) {
         return Path.of(assetsPath +"/" + assetUrl).toFile();
     }
 
 
     public List<List<String>>  getCollection(String code) {
+        return catalogStore.getCategoryPaths(code).stream()
+                .map(ProductSource::toCategories)
+                .collect(Collectors.toList());
+    }
 
-        File[] files = path.toFile().listFiles((dir, name) -> name.startsWith(code+COLLECTION_SEPARATOR));
-
-        if(files == null || files.length == 0) {
-            return new ArrayList<>();
+    /**
+     * Imports the per product JSON files of earlier runs into an empty catalog.
+     * Extracted files are named code-category1-category2.json. Codes may contain the separator
+     * themselves, so the code is read from the file and what follows it in the name is the category path.
+     */
+    private void importWorkspace() {
+        List<CatalogStore.Discovery> discoveries = new ArrayList<>();
+
+        File[] extractedFiles = path.toFile().listFiles((dir, name) -> name.endsWith(".json"));
+
+        if (extractedFiles != null) {
+            for (File extractedFile : extractedFiles) {
+                try {
+                    Product product = objectMapper.readValue(extractedFile, Product.class);
+                    String name = extractedFile.getName().substring(0, extractedFile.getName().length() - ".json".length());
+
+                    if (product.code() != null && name.startsWith(product.code() + COLLECTION_SEPARATOR)) {
+                        discoveries.add(new CatalogStore.Discovery(product,
+                                name.substring(product.code().length() + COLLECTION_SEPARATOR.length())));
+                    }
+                } catch (IOException e) {
+                    logger.warn("Unable to import " + extractedFile, e);
+                }
+            }
         }
 
-        return List.of(files).stream().map(file ->
-        List.of(file.getName()
-                .replaceFirst(code + COLLECTION_SEPARATOR,"")
-                .replaceFirst(".json","").split(COLLECTION_SEPARATOR)))
+        List<Product> enrichedProducts = new ArrayList<>();
 
-                .collect(Collectors.toList());
-    }
+        File[] enrichedFiles = enrichmentPath.toFile().listFiles((dir, name) -> name.endsWith(".json"));
 
-    private List<File> findOriginalProductJson(String code) {
-        File[] files = path.toFile().listFiles((dir, name) -> name.startsWith(code+COLLECTION_SEPARATOR));
+        if (enrichedFiles != null) {
+            for (File enrichedFile : enrichedFiles) {
+                try {
+                    enrichedProducts.add(objectMapper.readValue(enrichedFile, Product.class));
+                } catch (IOException e) {
+                    logger.warn("Unable to import " + enrichedFile, e);
+                }
+            }
+        }
 
-        return List.of(files) ;
+        if (!discoveries.isEmpty() || !enrichedProducts.isEmpty()) {
+            catalogStore.saveProducts(discoveries);
+            catalogStore.saveEnrichedProducts(enrichedProducts);
+            logger.info("Imported " + discoveries.size() + " extracted and " + enrichedProducts.size()
+                    + " enriched products of " + getClass().getSimpleName());
+        }
     }
 
     public void extraxt() throws IOException, URISyntaxException {
         login();
         this.browse();
         this.enrich();
+        // Prefetched assets are downloaded with the session, before it is logged out
+        awaitAssetDownloads();
         logout();
     }
 
@@ -0,0 +1,234 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.model.Product;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Extracts a Product from a MultiCraft SKU page in a single streaming pass.
+ * Only the images, the fields of the details and the title and description are kept while parsing,
+ * every other element is dropped as soon as it is closed, so the page is never held as a full DOM.
+ * Prices, pack and UPC are read from the text of the values as they were parsed.
+ */
+final class SkuPageExtractor {
+
+    private static final Evaluator IMAGE = QueryParser.parse("#img-previews>li>img");
+
+    private static final Evaluator FIELD = QueryParser.parse("div.details-brief > .row");
+
+    private static final Evaluator FIELD_HEADER = QueryParser.parse(".hdr");
+
+    private static final Evaluator FIELD_VALUE = QueryParser.parse(".vlu");
+
+    private static final Evaluator TITLE = QueryParser.parse(".details-desc");
+
+    private static final Evaluator DESCRIPTION = QueryParser.parse(".details-blurb");
+
+    private static final double[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private SkuPageExtractor() {
+    }
+
+    /**
+     * @param productCode
+     * @param body SKU page
+     * @param charset of the body, UTF-8 when unknown
+     * @param url of the page
+     * @return Product
+     */
+    static Product extract(final String productCode,
+                           final InputStream body,
+                           final String charset,
+                           final String url) throws IOException {
+        List<String> imageUrls = new ArrayList<>();
+
+        String title = null;
+        String description = null;
+
+        float price = 0;
+        float discount = 0;
+
+        Long upc = null;
+
+        int invertyQty = 0;
+
+        try (StreamParser streamParser = new StreamParser(Parser.htmlParser())) {
+            streamParser.parse(new InputStreamReader(body,
+                    charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset)), url);
+
+            Document document = streamParser.document();
+
+            Iterator<Element> elements = streamParser.iterator();
+
+            while (elements.hasNext()) {
+                Element element = elements.next();
+
+                if (IMAGE.matches(document, element)) {
+                    String src = element.attr("src");
+                    int query = src.indexOf('?');
+                    imageUrls.add(query == -1 ? src : src.substring(0, query));
+                } else if (FIELD.matches(document, element)) {
+                    Element headerEl = element.selectFirst(FIELD_HEADER);
+                    Element valueEl = element.selectFirst(FIELD_VALUE);
+
+                    if (headerEl != null && valueEl != null) {
+                        String header = rawText(headerEl);
+                        String value = rawText(valueEl);
+
+                        if (equalsTrimmed(header, "unit price")) {
+                            int start = nextNumber(value, 0);
+                            if (start != -1) {
+                                int end = endOfNumber(value, start);
+                                price = parseDecimal(value, start, end);
+
+                                start = nextNumber(value, end);
+                                if (start != -1) {
+                                    discount = parseDecimal(value, start, endOfNumber(value, start));
+                                }
+                            }
+                        } else if (equalsTrimmed(header, "pack")) {
+                            invertyQty = (int) parseDigits(value);
+                        } else if (equalsTrimmed(header, "UPC")) {
+                            if (nextNumber(value, 0) != -1) {
+                                upc = parseDigits(value);
+                            }
+                        }
+                    }
+                } else if (title == null && TITLE.matches(document, element)) {
+                    title = element.text();
+                } else if (description == null && DESCRIPTION.matches(document, element)) {
+                    description = element.text();
+                } else if (isWithinTarget(element)) {
+                    // Still needed by the element it belongs to
+                    continue;
+                }
+
+                element.remove();
+            }
+        }
+
+        return new Product(
+                productCode
+                , title
+                , description
+                , upc
+                , invertyQty
+                , price
+                , discount
+                , imageUrls.toArray(new String[0])
+        );
+    }
+
+    /**
+     * Whether the element is part of an element which is extracted once it is closed.
+     */
+    private static boolean isWithinTarget(final Element element) {
+        for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+            if (parent.hasClass("details-brief")
+                    || parent.hasClass("details-desc")
+                    || parent.hasClass("details-blurb")
+                    || "img-previews".equals(parent.id())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Text of the element as parsed when it is a single text node, its normalised text otherwise.
+     */
+    private static String rawText(final Element element) {
+        if (element.childNodeSize() == 1 && element.firstChild() instanceof TextNode textNode) {
+            return textNode.getWholeText();
+        }
+        return element.text();
+    }
+
+    static boolean equalsTrimmed(final String text, final String expected) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return end - start == expected.length() && text.regionMatches(start, expected, 0, expected.length());
+    }
+
+    /**
+     * @return index of the first digit at or after from, -1 if there is none
+     */
+    static int nextNumber(final String text, final int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (isDigit(text.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index after the number starting at start, digits with separators and a decimal point
+     */
+    static int endOfNumber(final String text, final int start) {
+        int end = start;
+        while (end < text.length()
+                && (isDigit(text.charAt(end)) || text.charAt(end) == '.' || text.charAt(end) == ',')) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Parses a decimal number such as 1,234.56, ignoring digits beyond the precision of a price.
+     */
+    static float parseDecimal(final String text, final int start, final int end) {
+        long mantissa = 0;
+        int scale = -1;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                scale = 0;
+            } else if (isDigit(c) && scale < POWERS_OF_TEN.length - 1) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+            }
+        }
+        return (float) (mantissa / POWERS_OF_TEN[Math.max(scale, 0)]);
+    }
+
+    /**
+     * Parses the digits of the text, ignoring anything else.
+     */
+    static long parseDigits(final String text) {
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isDigit(c)) {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return value;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
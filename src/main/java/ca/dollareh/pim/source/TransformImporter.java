@@ -0,0 +1,198 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.dhatim.fastexcel.reader.Cell;
+import org.dhatim.fastexcel.reader.ReadableWorkbook;
+import org.dhatim.fastexcel.reader.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Imports a vendor sheet as the transformations of a product source.
+ * The first sheet of the workbook is streamed row by row, each row becomes a partial Product of its
+ * mapped columns, saved to the catalog of the source in batches. Rows are read until the first one
+ * without a code.
+ */
+public class TransformImporter {
+
+    final Logger logger = LoggerFactory.getLogger(TransformImporter.class);
+
+    private final CatalogStore catalogStore;
+
+    private final int codeColumn;
+
+    private final Map<String, Integer> columns;
+
+    private final int headerRows;
+
+    private final int batchSize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private TransformImporter(final TransformImporterBuilder builder) {
+        catalogStore = builder.productSource.getCatalogStore();
+        codeColumn = builder.codeColumn;
+        columns = Map.copyOf(builder.columns);
+        headerRows = builder.headerRows;
+        batchSize = builder.batchSize;
+    }
+
+    // Use a builder to instantiate TransformImporter
+    public static TransformImporterBuilder from(final ProductSource productSource) {
+        return new TransformImporterBuilder(productSource);
+    }
+
+    /**
+     * Imports the vendor sheet.
+     * A code found again further down the sheet is logged and skipped.
+     * @param workbookPath xlsx file
+     * @return number of products imported
+     */
+    public int importSheet(final Path workbookPath) throws IOException {
+        Set<String> codes = new HashSet<>();
+        List<Product> batch = new ArrayList<>(batchSize);
+
+        try (ReadableWorkbook workbook = new ReadableWorkbook(workbookPath.toFile());
+             Stream<Row> rows = workbook.getFirstSheet().openStream()) {
+
+            Iterator<Row> iterator = rows.iterator();
+
+            while (iterator.hasNext()) {
+                Row row = iterator.next();
+
+                if (row.getRowNum() <= headerRows) {
+                    continue;
+                }
+
+                String code = row.getCellText(codeColumn).trim();
+
+                if (code.isEmpty()) {
+                    break;
+                }
+
+                if (!codes.add(code)) {
+                    logger.warn("Duplicate product " + code + " at row " + row.getRowNum() + " of " + workbookPath);
+                    continue;
+                }
+
+                batch.add(toProduct(code, row));
+
+                if (batch.size() == batchSize) {
+                    catalogStore.saveTransforms(batch);
+                    batch.clear();
+                }
+            }
+        }
+
+        catalogStore.saveTransforms(batch);
+
+        logger.info("Imported " + codes.size() + " transformations from " + workbookPath);
+
+        return codes.size();
+    }
+
+    private Product toProduct(final String code, final Row row) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("code", code);
+
+        columns.forEach((field, column) -> {
+            Object value = cellValue(row, column);
+            if (value != null) {
+                fields.put(field, value);
+            }
+        });
+
+        try {
+            return objectMapper.convertValue(fields, Product.class);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(code + " : Invalid row " + row.getRowNum(), e);
+        }
+    }
+
+    private static Object cellValue(final Row row, final int column) {
+        if (!row.hasCell(column)) {
+            return null;
+        }
+        Cell cell = row.getCell(column);
+        return switch (cell.getType()) {
+            case NUMBER -> cell.asNumber();
+            case STRING -> cell.asString();
+            case BOOLEAN -> cell.asBoolean();
+            case FORMULA -> cell.getRawValue();
+            case EMPTY, ERROR -> null;
+        };
+    }
+
+    // Builder class
+    public static class TransformImporterBuilder {
+
+        private final ProductSource productSource;
+
+        private int codeColumn = 1;
+
+        // Columns of the vendor order sheet, by Product field
+        private final Map<String, Integer> columns = new LinkedHashMap<>(Map.of(
+                "description", 7,
+                "inventryQuantity", 9,
+                "discount", 10,
+                "price", 11));
+
+        private int headerRows = 1;
+
+        private int batchSize = 500;
+
+        public TransformImporterBuilder(final ProductSource productSource) {
+            this.productSource = productSource;
+        }
+
+        public TransformImporterBuilder codeColumn(final int codeColumn) {
+            this.codeColumn = codeColumn;
+            return this;
+        }
+
+        /**
+         * Maps a column (0 based) to a Product field, replacing the column of the field if it was mapped.
+         */
+        public TransformImporterBuilder column(final String field, final int column) {
+            this.columns.put(field, column);
+            return this;
+        }
+
+        /**
+         * Replaces the columns mapped by default.
+         */
+        public TransformImporterBuilder columns(final Map<String, Integer> columns) {
+            this.columns.clear();
+            this.columns.putAll(columns);
+            return this;
+        }
+
+        public TransformImporterBuilder headerRows(final int headerRows) {
+            this.headerRows = headerRows;
+            return this;
+        }
+
+        public TransformImporterBuilder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public TransformImporter build() {
+            return new TransformImporter(this);
+        }
+    }
+}
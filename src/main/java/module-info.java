@@ -6,9 +6,13 @@ module my.module {
     requires org.slf4j;
 
     requires java.net.http;
+    requires java.sql;
+    requires com.h2database;
     requires com.google.common;
     requires jakarta.validation;
     requires org.apache.poi.ooxml;
+    requires org.dhatim.fastexcel.reader;
+    requires org.dhatim.fastexcel;
 
     exports ca.dollareh.pim.model;
     opens ca.dollareh.pim.model;
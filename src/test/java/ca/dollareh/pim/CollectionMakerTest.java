@@ -40,7 +40,7 @@ public class CollectionMakerTest {
                 })
                 .build();
 
-        Shopify shopify = new Shopify(productSource);
+        Shopify shopify = Shopify.from(productSource).build();
 
         FileInputStream file = new FileInputStream(Paths.get("sample/Multicraft Final Order June 02, 2024.xlsx").toFile());
         Workbook workbook = new XSSFWorkbook(file);
@@ -13,7 +13,7 @@ class ProductSourceTest {
     final Logger logger = LoggerFactory.getLogger(ProductSourceTest.class);
     @Test
     void testMultiCraft() throws IOException, URISyntaxException {
-        ProductSource productSource = ProductSource
+        try (ProductSource productSource = ProductSource
                 .from(MultiCraft.class)
                 .onNew(newProduct -> {
                     logger.info("New Product Found " + newProduct);
@@ -21,8 +21,9 @@ class ProductSourceTest {
                 .onModified(updatedProduct -> {
                     logger.info("Product Modified " + updatedProduct);
                 })
-                .build();
-        productSource.extraxt();
+                .build()) {
+            productSource.extraxt();
+        }
     }
 
 }
\ No newline at end of file
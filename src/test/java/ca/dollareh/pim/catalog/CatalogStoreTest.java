@@ -0,0 +1,86 @@
+package ca.dollareh.pim.catalog;
+
+import ca.dollareh.pim.model.Product;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CatalogStoreTest {
+
+    private final Path databasePath = Path.of("workspace/catalog/CatalogStoreTest");
+
+    private CatalogStore catalogStore;
+
+    @BeforeEach
+    void open() {
+        catalogStore = new CatalogStore(databasePath);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        catalogStore.close();
+        Files.deleteIfExists(Path.of(databasePath + ".mv.db"));
+        Files.deleteIfExists(Path.of(databasePath + ".trace.db"));
+    }
+
+    @Test
+    void testSaveProduct() {
+        assertTrue(catalogStore.isEmpty());
+
+        Product brush = product("AB020", 3.56f);
+
+        assertEquals(CatalogStore.Change.NEW, catalogStore.saveProduct(brush, "art-brushes"));
+        assertEquals(CatalogStore.Change.UNCHANGED, catalogStore.saveProduct(brush, "sale"));
+        assertEquals(CatalogStore.Change.MODIFIED, catalogStore.saveProduct(product("AB020", 2.99f), "art-brushes"));
+
+        assertEquals(2.99f, catalogStore.getProduct("AB020").price());
+        assertEquals(List.of("art-brushes", "sale"), catalogStore.getCategoryPaths("AB020"));
+        assertEquals(List.of("AB020"), catalogStore.getCodes("sale"));
+        assertEquals(1, catalogStore.getProductsByUpc(83110067189L).size());
+        assertNull(catalogStore.getProduct("AB020A"));
+        assertFalse(catalogStore.isEmpty());
+
+        // Fingerprints are kept with the products, so a reopened catalog still knows them
+        catalogStore.close();
+        catalogStore = new CatalogStore(databasePath);
+
+        assertEquals(CatalogStore.Change.UNCHANGED, catalogStore.saveProduct(product("AB020", 2.99f), "sale"));
+        assertEquals(CatalogStore.Change.NEW, catalogStore.saveProduct(product("AB020A", 2.99f), "sale"));
+        assertEquals(List.of("AB020", "AB020A"), catalogStore.getCodes("sale"));
+    }
+
+    @Test
+    void testBatchWrites() {
+        int size = CatalogStore.BATCH_SIZE * 2 + 1;
+
+        catalogStore.saveProducts(IntStream.range(0, size)
+                .mapToObj(i -> new CatalogStore.Discovery(product("P" + i, 1f), ""))
+                .toList());
+        catalogStore.saveEnrichedProducts(IntStream.range(0, size)
+                .mapToObj(i -> product("P" + i, 2f))
+                .toList());
+
+        assertEquals(size, catalogStore.getCodes("").size());
+        assertEquals(size, catalogStore.getEnrichedProducts().size());
+
+        assertFalse(catalogStore.hasExported());
+        catalogStore.saveExported(Map.of("P0", new CatalogStore.Exported(1000L, -42L)));
+        assertEquals(new CatalogStore.Exported(1000L, -42L), catalogStore.getExported("P0"));
+    }
+
+    private static Product product(final String code, final float price) {
+        return new Product(code, "Brush " + code, "Brush Set", 83110067189L, 12, price, null, new String[0]);
+    }
+}
@@ -0,0 +1,32 @@
+package ca.dollareh.pim.integration;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Base64InputStreamTest {
+
+    @Test
+    void testMatchesBase64Encoder() throws IOException {
+        Random random = new Random(42);
+
+        for (int size : new int[]{0, 1, 2, 3, 4, 12287, 12288, 12289, 100_000}) {
+            byte[] source = new byte[size];
+            random.nextBytes(source);
+
+            byte[] expected = Base64.getEncoder().encode(source);
+
+            try (InputStream base64InputStream = new Base64InputStream(new ByteArrayInputStream(source))) {
+                assertArrayEquals(expected, base64InputStream.readAllBytes(), "size " + size);
+            }
+            assertEquals(expected.length, Base64InputStream.encodedLength(size));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ca.dollareh.pim.integration;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CollectionResolverTest {
+
+    @Test
+    void testResolvesPathAndAncestors() {
+        Properties collectionMappings = new Properties();
+        collectionMappings.setProperty("MultiCraft", "1");
+        collectionMappings.setProperty("MultiCraft-art", "2");
+        collectionMappings.setProperty("MultiCraft-art-brushes-flat", "4");
+        collectionMappings.setProperty("MultiCraft-beads", "5");
+        collectionMappings.setProperty("OtherSource-art", "6");
+
+        CollectionResolver collectionResolver = new CollectionResolver(collectionMappings, "MultiCraft");
+
+        // brushes has no collection of its own, the source itself is the default collection
+        assertEquals(List.of("2", "4"), collectionResolver.resolve(List.of("art", "brushes", "flat")));
+        assertEquals(List.of("2"), collectionResolver.resolve(List.of("art", "paints")));
+        assertEquals(List.of(), collectionResolver.resolve(List.of("sale")));
+        assertEquals(List.of(), collectionResolver.resolve(List.of()));
+
+        assertSame(collectionResolver.resolve(List.of("art", "paints")),
+                collectionResolver.resolve(List.of("art", "paints")));
+
+        assertEquals(Set.of("2", "4", "5"), collectionResolver.resolveAll(List.of(
+                List.of("art", "brushes", "flat"),
+                List.of("beads", "glass"),
+                List.of("art"))));
+    }
+}
@@ -0,0 +1,109 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.dhatim.fastexcel.reader.ReadableWorkbook;
+import org.dhatim.fastexcel.reader.Row;
+import org.dhatim.fastexcel.reader.Sheet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriceListExporterTest {
+
+    private final Path workbookPath = Path.of("workspace/export/Shopify/StandInSource/price-list.xlsx");
+
+    private ProductSource productSource;
+
+    @BeforeEach
+    void setUp() {
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        CatalogStore catalogStore = productSource.getCatalogStore();
+
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            products.add(new Product("AB" + i, "Brush " + i, "Brush " + i, 627843400000L + i, 12, 3.5f, 2.99f, new String[0]));
+        }
+
+        List<CatalogStore.Discovery> discoveries = new ArrayList<>();
+        for (Product product : products) {
+            discoveries.add(new CatalogStore.Discovery(product, "art-brushes"));
+        }
+        discoveries.add(new CatalogStore.Discovery(products.getFirst(), "sale"));
+
+        catalogStore.saveProducts(discoveries);
+        catalogStore.saveEnrichedProducts(products);
+        catalogStore.saveExported(Map.of("AB0", new CatalogStore.Exported(8123456789012L, 1L)));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void testExportsSheetPerTopCategory(final int parallelism) throws IOException {
+        long rows = PriceListExporter.from(productSource)
+                .parallelism(parallelism)
+                .build()
+                .export(workbookPath);
+
+        assertEquals(1501, rows);
+
+        try (ReadableWorkbook workbook = new ReadableWorkbook(workbookPath.toFile())) {
+            List<Sheet> sheets = workbook.getSheets().toList();
+            assertEquals(List.of("art", "sale"), sheets.stream().map(Sheet::getName).toList());
+
+            List<Row> artRows = sheets.getFirst().read();
+            assertEquals(1501, artRows.size());
+            assertEquals("Code", artRows.getFirst().getCellText(0));
+
+            Row firstRow = artRows.get(1);
+            assertEquals("AB0", firstRow.getCellText(0));
+            assertEquals("627843400000", firstRow.getCellText(2));
+            assertEquals("art-brushes", firstRow.getCellText(6));
+            assertEquals("8123456789012", firstRow.getCellText(7));
+
+            List<Row> saleRows = sheets.get(1).read();
+            assertEquals(2, saleRows.size());
+            assertEquals("3.5", saleRows.get(1).getCellText(4));
+        }
+    }
+
+    @Test
+    void testHeaderRowIsBold() throws IOException {
+        PriceListExporter.from(productSource)
+                .build()
+                .export(workbookPath);
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook(workbookPath.toFile())) {
+            XSSFSheet sheet = workbook.getSheetAt(0);
+
+            for (int column = 0; column < 8; column++) {
+                assertTrue(sheet.getRow(0).getCell(column).getCellStyle().getFont().getBold());
+            }
+            assertFalse(sheet.getRow(1).getCell(0).getCellStyle().getFont().getBold());
+        } catch (InvalidFormatException e) {
+            throw new IOException(e);
+        }
+    }
+}
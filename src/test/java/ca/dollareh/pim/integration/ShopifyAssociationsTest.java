@@ -0,0 +1,102 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.source.ProductSource;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Adds products to collections on a local stand-in of the Shopify Admin API.
+ */
+class ShopifyAssociationsTest {
+
+    private final AtomicInteger collectionPages = new AtomicInteger();
+
+    private final AtomicInteger titleLookups = new AtomicInteger();
+
+    private final Set<String> postedCollects = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> collectQueries = ConcurrentHashMap.newKeySet();
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    private Shopify shopify;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/custom_collections.json", exchange -> {
+                    String query = exchange.getRequestURI().getQuery();
+                    if (query.contains("title=")) {
+                        titleLookups.incrementAndGet();
+                        standIn.respondJson(exchange, Map.of("custom_collections", List.of()));
+                    } else {
+                        collectionPages.incrementAndGet();
+                        standIn.respondJson(exchange, Map.of("custom_collections", List.of(
+                                Map.of("id", 1, "title", "Paints"),
+                                Map.of("id", 2, "title", "Brushes"))));
+                    }
+                })
+                .on(ShopifyStandIn.API_PATH + "/collects.json", exchange -> {
+                    if (exchange.getRequestMethod().equals("POST")) {
+                        JsonNode collect = standIn.objectMapper.readTree(exchange.getRequestBody()).path("collect");
+                        postedCollects.add(collect.path("product_id").asText() + ":" + collect.path("collection_id").asText());
+                        exchange.getResponseHeaders().add("Content-Type", "application/json");
+                        standIn.respond(exchange, 201, "{\"collect\":{}}");
+                    } else {
+                        String query = exchange.getRequestURI().getQuery();
+                        collectQueries.add(query);
+                        standIn.respondJson(exchange, Map.of("collects", query.contains("product_id=10")
+                                ? List.of(Map.of("id", 100, "product_id", 10, "collection_id", 1))
+                                : List.of()));
+                    }
+                });
+
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        shopify = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .build();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testCreatesMissingCollectsOnly() throws URISyntaxException {
+        AssociationResult associationResult = shopify.associateCollections(Map.of(
+                10L, List.of("Paints", "Brushes"),
+                11L, List.of("Paints", "Stickers", ""),
+                12L, List.of("Brushes", "Stickers")));
+
+        assertEquals(new AssociationResult(3, 1, 0, Set.of("Stickers")), associationResult);
+
+        assertEquals(Set.of("10:2", "11:1", "12:2"), postedCollects);
+
+        // Only the collects of the products of the batch are read
+        assertEquals(Set.of("limit=250&product_id=10", "limit=250&product_id=11", "limit=250&product_id=12"),
+                collectQueries);
+
+        // Titles are resolved from a single listing of the collections, an unknown one is looked up once
+        assertEquals(1, collectionPages.get());
+        assertEquals(1, titleLookups.get());
+    }
+}
@@ -0,0 +1,173 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the bulk export against a local stand-in of the Shopify Admin API.
+ */
+class ShopifyBulkExportTest {
+
+    private final List<String> uploadedLines = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger throttledResponses = new AtomicInteger();
+
+    private final AtomicInteger graphQLRequests = new AtomicInteger();
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/graphql.json", this::onGraphQL)
+                .on("/upload", exchange -> {
+                    String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                    form.lines()
+                            .filter(line -> line.startsWith("{\"input\""))
+                            .forEach(uploadedLines::add);
+                    standIn.respond(exchange, 201, "");
+                })
+                .on("/result.jsonl", exchange -> {
+                    StringBuilder result = new StringBuilder();
+                    for (int i = 0; i < uploadedLines.size(); i++) {
+                        result.append("{\"data\":{\"productSet\":{\"product\":{\"id\":\"gid://shopify/Product/")
+                                .append(1000 + i)
+                                .append("\"},\"userErrors\":[]}},\"__lineNumber\":")
+                                .append(i)
+                                .append("}\n");
+                    }
+                    standIn.respond(exchange, 200, result.toString());
+                });
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testRetriesThrottledRequests() throws IOException, InterruptedException {
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        productSource.getCatalogStore().saveEnrichedProducts(List.of(
+                new Product("AB020A", "Brush AB020A", "Brush Set", 83110067189L, 12, 3.56f, 1.78f, new String[0])));
+
+        // Throttled responses come with a 200, the staged upload mutation is sent again until accepted
+        throttledResponses.set(2);
+
+        List<ExportResult> exportResults = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .bulkPollInterval(Duration.ofMillis(10))
+                .build()
+                .exportBulk();
+
+        assertEquals(List.of(ExportResult.Status.CREATED), exportResults.stream()
+                .map(ExportResult::status)
+                .toList());
+        assertEquals(0, throttledResponses.get());
+        assertTrue(graphQLRequests.get() >= 5, "GraphQL requests " + graphQLRequests.get());
+    }
+
+    @Test
+    void testExportBulk() throws IOException, InterruptedException {
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        productSource.getCatalogStore().saveEnrichedProducts(List.of("AB020A", "AB020B").stream()
+                .map(code -> new Product(code, "Brush " + code, "Brush Set", 83110067189L, 12, 3.56f, 1.78f, new String[0]))
+                .toList());
+
+        Shopify shopify = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .bulkPollInterval(Duration.ofMillis(10))
+                .build();
+
+        List<ExportResult> exportResults = shopify.exportBulk();
+
+        assertEquals(2, uploadedLines.size());
+        assertEquals(2, exportResults.size());
+
+        for (ExportResult exportResult : exportResults) {
+            assertEquals(ExportResult.Status.CREATED, exportResult.status());
+            assertTrue(new File("workspace/export/Shopify/" + StandInSource.class.getSimpleName(),
+                    exportResult.code() + "-" + exportResult.productId() + ".json").exists());
+        }
+
+        // A new instance finds the exported ids in the index and updates the products in place
+        uploadedLines.clear();
+
+        List<ExportResult> reExportResults = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .bulkPollInterval(Duration.ofMillis(10))
+                .build()
+                .exportBulk();
+
+        assertTrue(reExportResults.stream().allMatch(exportResult ->
+                exportResult.status() == ExportResult.Status.UPDATED));
+        assertTrue(uploadedLines.stream().allMatch(line -> line.contains("gid://shopify/Product/100")));
+    }
+
+    private void onGraphQL(final HttpExchange exchange) throws IOException {
+        JsonNode request = standIn.objectMapper.readTree(exchange.getRequestBody());
+        String query = request.path("query").asText();
+
+        graphQLRequests.incrementAndGet();
+
+        if (throttledResponses.getAndUpdate(throttled -> Math.max(0, throttled - 1)) > 0) {
+            standIn.respondJson(exchange, Map.of(
+                    "errors", List.of(Map.of(
+                            "message", "Throttled",
+                            "extensions", Map.of("code", "THROTTLED"))),
+                    "extensions", Map.of("cost", Map.of(
+                            "requestedQueryCost", 12,
+                            "throttleStatus", Map.of(
+                                    "maximumAvailable", 1000.0,
+                                    "currentlyAvailable", 10.0,
+                                    "restoreRate", 50.0)))));
+            return;
+        }
+
+        if (query.contains("stagedUploadsCreate")) {
+            standIn.respondData(exchange, Map.of("stagedUploadsCreate", Map.of(
+                    "stagedTargets", List.of(Map.of(
+                            "url", standIn.url() + "/upload",
+                            "resourceUrl", standIn.url() + "/upload",
+                            "parameters", List.of(Map.of("name", "key", "value", "tmp/bulk/products.jsonl")))),
+                    "userErrors", List.of())));
+        } else if (query.contains("bulkOperationRunMutation")) {
+            assertEquals("tmp/bulk/products.jsonl", request.path("variables").path("stagedUploadPath").asText());
+            standIn.respondData(exchange, Map.of("bulkOperationRunMutation", Map.of(
+                    "bulkOperation", Map.of("id", "gid://shopify/BulkOperation/1", "status", "CREATED"),
+                    "userErrors", List.of())));
+        } else {
+            standIn.respondData(exchange, Map.of("node", Map.of(
+                    "id", "gid://shopify/BulkOperation/1",
+                    "status", "COMPLETED",
+                    "objectCount", String.valueOf(uploadedLines.size()),
+                    "url", standIn.url() + "/result.jsonl")));
+        }
+    }
+}
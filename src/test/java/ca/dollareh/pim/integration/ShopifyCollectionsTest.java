@@ -0,0 +1,122 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.source.ProductSource;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads collections from a local stand-in of the Shopify Admin API.
+ */
+class ShopifyCollectionsTest {
+
+    private static final int PAGES = 3;
+
+    private static final int PAGE_SIZE = 250;
+
+    private final AtomicInteger graphQLRequests = new AtomicInteger();
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    private Shopify shopify;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/custom_collections.json", exchange -> {
+                    String query = exchange.getRequestURI().getQuery();
+                    int page = query.contains("page_info=") ? Integer.parseInt(query.replaceAll(".*page_info=", "")) : 0;
+
+                    List<Map<String, Object>> collections = new ArrayList<>();
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        long id = (long) page * PAGE_SIZE + i;
+                        collections.add(Map.of("id", id, "title", "Collection " + id));
+                    }
+
+                    if (page + 1 < PAGES) {
+                        exchange.getResponseHeaders().add("Link", "<" + standIn.baseUrl()
+                                + "/custom_collections.json?limit=250&page_info=" + (page + 1) + ">; rel=\"next\"");
+                    }
+                    standIn.respondJson(exchange, Map.of("custom_collections", collections));
+                })
+                .on(ShopifyStandIn.API_PATH + "/graphql.json", exchange -> {
+                    graphQLRequests.incrementAndGet();
+                    JsonNode request = standIn.objectMapper.readTree(exchange.getRequestBody());
+                    boolean firstPage = !request.path("variables").hasNonNull("cursor");
+
+                    Map<String, Object> withPaths = new HashMap<>();
+                    withPaths.put("legacyResourceId", firstPage ? "1" : "2");
+                    withPaths.put("title", firstPage ? "Paint Brushes" : "Glass Beads");
+                    withPaths.put("metafield", Map.of("value", firstPage
+                            ? "[\"MultiCraft-art-brushes\"]"
+                            : "[\"MultiCraft-beads-glass\",\"MultiCraft-beads-kits\"]"));
+
+                    Map<String, Object> withoutPaths = new HashMap<>();
+                    withoutPaths.put("legacyResourceId", "3");
+                    withoutPaths.put("title", "Sale");
+                    withoutPaths.put("metafield", null);
+
+                    standIn.respondData(exchange, Map.of("collections", Map.of(
+                            "pageInfo", Map.of("hasNextPage", firstPage, "endCursor", "cursor-1"),
+                            "nodes", firstPage ? List.of(withPaths, withoutPaths) : List.of(withPaths))));
+                });
+
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        shopify = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .build();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testFollowsPageInfoCursor() {
+        try (Stream<Map<String, Object>> collections = shopify.streamCollections()) {
+            assertEquals(PAGES * PAGE_SIZE, collections.count());
+        }
+
+        Map<Long, Map<String, Object>> collectionsMap = shopify.getShopifyCollection();
+
+        assertEquals(PAGES * PAGE_SIZE, collectionsMap.size());
+        assertEquals("Collection 749", collectionsMap.get(749L).get("title"));
+    }
+
+    @Test
+    void testCreateCollectionMappingsInPagedQueries() throws IOException {
+        shopify.createCollectionMappings();
+
+        assertEquals(2, graphQLRequests.get());
+
+        Properties collectionMappings = new Properties();
+        try (FileReader reader = new FileReader("workspace/export/Shopify/"
+                + StandInSource.class.getSimpleName() + "/collection.properties")) {
+            collectionMappings.load(reader);
+        }
+
+        assertEquals(Map.of("MultiCraft-art-brushes", "1",
+                "MultiCraft-beads-glass", "2",
+                "MultiCraft-beads-kits", "2"), collectionMappings);
+    }
+}
@@ -0,0 +1,154 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exports products concurrently to a local stand-in of the Shopify Admin API.
+ */
+class ShopifyExportTest {
+
+    private static final int PRODUCTS = 12;
+
+    private static final int CONCURRENCY = 3;
+
+    private static final String FAILING_CODE = "AB003";
+
+    private final AtomicLong productIds = new AtomicLong(8_000_000_000_000L);
+
+    private final Map<String, String> codesById = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private volatile boolean failUpdates = true;
+
+    private volatile int createStatus = 200;
+
+    private final AtomicInteger createRequests = new AtomicInteger();
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    private Shopify shopify;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/products", exchange -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                        String code = standIn.objectMapper.readTree(exchange.getRequestBody())
+                                .path("product").path("handle").asText();
+
+                        if (exchange.getRequestMethod().equals("POST") && createStatus != 200) {
+                            createRequests.incrementAndGet();
+                            standIn.respond(exchange, createStatus, "{\"errors\":\"Bad Gateway\"}");
+                        } else if (exchange.getRequestMethod().equals("POST")) {
+                            createRequests.incrementAndGet();
+                            long id = productIds.incrementAndGet();
+                            codesById.put(String.valueOf(id), code);
+                            standIn.respondJson(exchange, Map.of("product", Map.of("id", id)));
+                        } else if (failUpdates && code.equals(FAILING_CODE)) {
+                            standIn.respond(exchange, 422, "{\"errors\":\"Unprocessable\"}");
+                        } else {
+                            standIn.respondJson(exchange, Map.of("product", Map.of()));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        shopify = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .concurrency(CONCURRENCY)
+                .build();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testExportsConcurrentlyAndRetriesFailedUpdates() throws IOException {
+        CatalogStore catalogStore = productSource.getCatalogStore();
+
+        catalogStore.saveEnrichedProducts(products(3.56f));
+
+        assertEquals(Map.of(ExportResult.Status.CREATED, (long) PRODUCTS), statuses(shopify.export()));
+        assertEquals(PRODUCTS, codesById.size());
+        assertTrue(maxInFlight.get() > 1 && maxInFlight.get() <= CONCURRENCY, "in flight " + maxInFlight.get());
+
+        long createdFingerprint = catalogStore.getExported(FAILING_CODE).fingerprint();
+
+        // A rejected update keeps the old fingerprint
+        catalogStore.saveEnrichedProducts(products(4.20f));
+
+        List<ExportResult> updateResults = shopify.export();
+
+        assertEquals(Map.of(ExportResult.Status.UPDATED, (long) PRODUCTS - 1, ExportResult.Status.FAILED, 1L),
+                statuses(updateResults));
+        assertEquals(Set.of(FAILING_CODE), updateResults.stream()
+                .filter(exportResult -> exportResult.status() == ExportResult.Status.FAILED)
+                .map(ExportResult::code)
+                .collect(Collectors.toSet()));
+        assertEquals(createdFingerprint, catalogStore.getExported(FAILING_CODE).fingerprint());
+
+        // So the next export updates it again
+        failUpdates = false;
+
+        assertEquals(Map.of(ExportResult.Status.UPDATED, 1L, ExportResult.Status.UNCHANGED, (long) PRODUCTS - 1),
+                statuses(shopify.export()));
+    }
+
+    @Test
+    void testDoesNotRetryFailedCreates() throws IOException {
+        productSource.getCatalogStore().saveEnrichedProducts(products(3.56f));
+
+        // Shopify may have created the product before failing, sending it again could duplicate it
+        createStatus = 502;
+
+        assertEquals(Map.of(ExportResult.Status.FAILED, (long) PRODUCTS), statuses(shopify.export()));
+        assertEquals(PRODUCTS, createRequests.get());
+    }
+
+    private static List<Product> products(final float price) {
+        return IntStream.rangeClosed(1, PRODUCTS)
+                .mapToObj(i -> String.format("AB%03d", i))
+                .map(code -> new Product(code, "Brush " + code, "Brush Set", 83110067189L, 12, price, 1.78f, new String[0]))
+                .toList();
+    }
+
+    private static Map<ExportResult.Status, Long> statuses(final List<ExportResult> exportResults) {
+        return exportResults.stream()
+                .collect(Collectors.groupingBy(ExportResult::status, Collectors.counting()));
+    }
+}
@@ -0,0 +1,142 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Syncs product images with a local stand-in of the Shopify Admin API.
+ */
+class ShopifyImagesTest {
+
+    private static final long PRODUCT_ID = 8_000_000_000_001L;
+
+    private final AtomicLong imageIds = new AtomicLong(500);
+
+    private final Queue<String> requests = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean withoutImageId;
+
+    private volatile boolean failUploads;
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    private final Product product = new Product("AB020", "Brush", "Brush Set", 83110067189L, 12, 3.56f, 1.78f,
+            new String[]{"/images/front.png", "/images/back.png"});
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/products", exchange -> {
+                    exchange.getRequestBody().readAllBytes();
+                    standIn.respondJson(exchange, Map.of("product", Map.of("id", PRODUCT_ID)));
+                })
+                .on(ShopifyStandIn.API_PATH + "/products/" + PRODUCT_ID + "/images", exchange -> {
+                    exchange.getRequestBody().readAllBytes();
+                    if (exchange.getRequestMethod().equals("DELETE")) {
+                        requests.add("DELETE " + exchange.getRequestURI().getPath().replaceAll(".*/images/", ""));
+                        standIn.respond(exchange, 200, "{}");
+                    } else if (failUploads) {
+                        requests.add("POST");
+                        standIn.respond(exchange, 500, "{\"errors\":\"Internal Server Error\"}");
+                    } else if (withoutImageId) {
+                        requests.add("POST");
+                        standIn.respondJson(exchange, Map.of("image", Map.of()));
+                    } else {
+                        long imageId = imageIds.incrementAndGet();
+                        requests.add("POST " + imageId);
+                        standIn.respondJson(exchange, Map.of("image", Map.of("id", imageId)));
+                    }
+                });
+
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        writeAsset("/images/front.png", "front");
+        writeAsset("/images/back.png", "back");
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testUploadsChangedImagesOnly() throws IOException {
+        shopify().createImages(PRODUCT_ID, product);
+        assertEquals(List.of("POST 501", "POST 502"), List.copyOf(requests));
+
+        // The manifest is saved with the product, a new instance skips the uploaded images
+        requests.clear();
+        shopify().createImages(PRODUCT_ID, product);
+        assertEquals(List.of(), List.copyOf(requests));
+
+        // A replaced image is uploaded and the previous one deleted
+        writeAsset("/images/back.png", "back, retouched");
+        shopify().createImages(PRODUCT_ID, product);
+        assertEquals(List.of("POST 503", "DELETE 502.json"), List.copyOf(requests));
+    }
+
+    @Test
+    void testRetriesUploadsWithoutImageId() throws IOException {
+        withoutImageId = true;
+        shopify().createImages(PRODUCT_ID, product);
+        assertEquals(List.of("POST", "POST"), List.copyOf(requests));
+
+        // Nothing was recorded, so nothing is deleted and both images are uploaded again
+        requests.clear();
+        withoutImageId = false;
+        shopify().createImages(PRODUCT_ID, product);
+        assertEquals(List.of("POST 501", "POST 502"), List.copyOf(requests));
+    }
+
+    @Test
+    void testRetriesImagesFailedOnCreate() throws IOException {
+        productSource.getCatalogStore().saveEnrichedProducts(List.of(product));
+
+        failUploads = true;
+        assertEquals(List.of(ExportResult.Status.CREATED), statuses(shopify().export()));
+        assertEquals(List.of("POST", "POST"), List.copyOf(requests));
+
+        // The product is unchanged, but its images are tracked from its creation so they are uploaded now
+        requests.clear();
+        failUploads = false;
+        assertEquals(List.of(ExportResult.Status.UNCHANGED), statuses(shopify().export()));
+        assertEquals(List.of("POST 501", "POST 502"), List.copyOf(requests));
+    }
+
+    private static List<ExportResult.Status> statuses(final List<ExportResult> exportResults) {
+        return exportResults.stream()
+                .map(ExportResult::status)
+                .toList();
+    }
+
+    private Shopify shopify() {
+        return Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .build();
+    }
+
+    private void writeAsset(final String assetUrl, final String content) throws IOException {
+        Path assetPath = productSource.getAssetFile(assetUrl).toPath();
+        Files.createDirectories(assetPath.getParent());
+        Files.writeString(assetPath, content);
+    }
+}
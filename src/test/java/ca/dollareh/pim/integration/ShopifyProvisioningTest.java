@@ -0,0 +1,140 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.source.ProductSource;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Provisions collections on a local stand-in of the Shopify Admin API.
+ */
+class ShopifyProvisioningTest {
+
+    private static final int MOVED = 30;
+
+    private static final int MISSING = 10;
+
+    private final AtomicInteger collectionQueries = new AtomicInteger();
+
+    private final AtomicInteger createdIds = new AtomicInteger(1000);
+
+    private final Queue<String> createdTitles = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Integer> metafieldBatches = new ConcurrentLinkedQueue<>();
+
+    private ShopifyStandIn standIn;
+
+    private ProductSource productSource;
+
+    private Shopify shopify;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        standIn = new ShopifyStandIn()
+                .on(ShopifyStandIn.API_PATH + "/custom_collections.json", exchange -> {
+                    JsonNode collection = standIn.objectMapper.readTree(exchange.getRequestBody()).path("custom_collection");
+                    createdTitles.add(collection.path("title").asText());
+                    standIn.respondJson(exchange, Map.of("custom_collection",
+                            Map.of("id", createdIds.incrementAndGet(), "title", collection.path("title").asText())));
+                })
+                .on(ShopifyStandIn.API_PATH + "/graphql.json", exchange -> {
+                    JsonNode request = standIn.objectMapper.readTree(exchange.getRequestBody());
+
+                    if (request.path("query").asText().contains("metafieldsSet")) {
+                        metafieldBatches.add(request.path("variables").path("metafields").size());
+                        standIn.respondData(exchange, Map.of("metafieldsSet",
+                                Map.of("metafields", List.of(), "userErrors", List.of())));
+                        return;
+                    }
+
+                    collectionQueries.incrementAndGet();
+
+                    List<Map<String, Object>> nodes = new ArrayList<>();
+                    nodes.add(node(1, "Paint Brushes", "[\"StandInSource-art-brushes\",\"OtherSource-art\"]"));
+                    nodes.add(node(2, "Glass Beads", "[\"StandInSource-beads-glass\"]"));
+                    nodes.add(node(3, "Sale", null));
+                    // Same title as another collection, its mappings are kept
+                    nodes.add(node(4, "Glass Beads", "[\"OtherSource-beads\"]"));
+                    for (int i = 0; i < MOVED; i++) {
+                        nodes.add(node(10 + i, "Moved " + i, "[\"StandInSource-old-" + i + "\"]"));
+                    }
+
+                    standIn.respondData(exchange, Map.of("collections", Map.of(
+                            "pageInfo", Map.of("hasNextPage", false, "endCursor", "cursor-1"),
+                            "nodes", nodes)));
+                });
+
+        productSource = ProductSource.from(StandInSource.class).build();
+
+        shopify = Shopify.from(productSource)
+                .baseUrl(standIn.baseUrl())
+                .accessToken("stand-in")
+                .build();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        standIn.close();
+        productSource.close();
+        StandInSource.cleanWorkspace();
+    }
+
+    @Test
+    void testProvisionsDifferencesOnly() throws IOException {
+        Map<String, List<List<String>>> collectionCategories = new LinkedHashMap<>();
+        collectionCategories.put("Paint Brushes", List.of(List.of("art", "brushes"), List.of("art", "brushes", "flat")));
+        collectionCategories.put("Glass Beads", List.of(List.of("beads", "glass")));
+        for (int i = 0; i < MOVED; i++) {
+            collectionCategories.put("Moved " + i, List.of(List.of("new", String.valueOf(i))));
+        }
+        for (int i = 0; i < MISSING; i++) {
+            collectionCategories.put("Missing " + i, List.of(List.of("missing", String.valueOf(i)), List.of()));
+        }
+
+        ProvisioningResult provisioningResult = shopify.provisionCollections(collectionCategories);
+
+        assertEquals(new ProvisioningResult(MISSING, MOVED + 1, 1, 0), provisioningResult);
+        assertEquals(MISSING, createdTitles.size());
+
+        // Metafields are set 25 at a time, collections are read once
+        assertEquals(List.of(25, MOVED + 1 - 25), List.copyOf(metafieldBatches));
+        assertEquals(1, collectionQueries.get());
+
+        Properties collectionMappings = new Properties();
+        try (FileReader reader = new FileReader("workspace/export/Shopify/"
+                + StandInSource.class.getSimpleName() + "/collection.properties")) {
+            collectionMappings.load(reader);
+        }
+
+        assertEquals(5 + MOVED + MISSING, collectionMappings.size());
+        assertEquals("4", collectionMappings.getProperty("OtherSource-beads"));
+        assertEquals("1", collectionMappings.getProperty("StandInSource-art-brushes-flat"));
+        assertEquals("1", collectionMappings.getProperty("OtherSource-art"));
+        assertEquals("2", collectionMappings.getProperty("StandInSource-beads-glass"));
+        assertEquals("10", collectionMappings.getProperty("StandInSource-new-0"));
+        assertEquals(null, collectionMappings.getProperty("StandInSource-old-0"));
+    }
+
+    private static Map<String, Object> node(final long id, final String title, final String paths) {
+        Map<String, Object> node = new HashMap<>();
+        node.put("legacyResourceId", String.valueOf(id));
+        node.put("title", title);
+        node.put("metafield", paths == null ? null : Map.of("value", paths));
+        return node;
+    }
+}
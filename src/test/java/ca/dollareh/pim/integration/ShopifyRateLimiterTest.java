@@ -0,0 +1,90 @@
+package ca.dollareh.pim.integration;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShopifyRateLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void testPacesAtLeakRateOnceBucketIsFull() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(2, 2, clock::get);
+
+        assertEquals(0, rateLimiter.reserve());
+        assertEquals(0, rateLimiter.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), rateLimiter.reserve());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(0, rateLimiter.reserve());
+    }
+
+    @Test
+    void testWaitsForMissingQueryCost() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(40, 2, clock::get);
+
+        assertEquals(Duration.ofMillis(1200), rateLimiter.throttleBackoff(100, 40, 50, 0));
+
+        // Throttled with enough points left still waits for one point
+        assertEquals(Duration.ofMillis(20), rateLimiter.throttleBackoff(10, 40, 50, 0));
+    }
+
+    @Test
+    void testFollowsCallLimitHeader() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(40, 2, clock::get);
+
+        rateLimiter.onCallLimit("40/40");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.reserve());
+
+        rateLimiter.onCallLimit("1/80");
+        assertEquals(0, rateLimiter.reserve());
+    }
+
+    @Test
+    void testDerivesLeakRateFromCapacity() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(40, 2, clock::get);
+
+        // Plus stores drain 80 calls at 4 per second
+        rateLimiter.onCallLimit("80/80");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), rateLimiter.reserve());
+    }
+
+    @Test
+    void testKeepsSlotsReservedInFlight() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(40, 2, clock::get);
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals(0, rateLimiter.reserve());
+        }
+
+        // A response counting fewer calls than reserved does not free the slots of the other calls
+        rateLimiter.onCallLimit("1/40");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.reserve());
+    }
+
+    @Test
+    void testPausesOnRetryAfter() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter(40, 2, clock::get);
+
+        rateLimiter.onThrottled(Duration.ofSeconds(3));
+
+        assertTrue(rateLimiter.reserve() >= TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    void testBackoffIsBounded() {
+        ShopifyRateLimiter rateLimiter = new ShopifyRateLimiter();
+
+        for (int attempt = 0; attempt < 10; attempt++) {
+            Duration backoff = rateLimiter.backoff(attempt);
+            assertTrue(!backoff.isNegative() && backoff.compareTo(Duration.ofSeconds(30)) <= 0);
+        }
+    }
+}
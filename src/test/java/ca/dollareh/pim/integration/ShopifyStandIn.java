@@ -0,0 +1,71 @@
+package ca.dollareh.pim.integration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in of the Shopify Admin API, built on the JDK HTTP server.
+ */
+class ShopifyStandIn implements AutoCloseable {
+
+    static final String API_PATH = "/admin/api/2025-01";
+
+    final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpServer server;
+
+    // Requests are served concurrently, as Shopify does
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    ShopifyStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    String baseUrl() {
+        return url() + API_PATH;
+    }
+
+    ShopifyStandIn on(final String path, final HttpHandler handler) {
+        server.createContext(path, handler);
+        return this;
+    }
+
+    void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length != 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+    void respondJson(final HttpExchange exchange, final Object body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        respond(exchange, 200, objectMapper.writeValueAsString(body));
+    }
+
+    void respondData(final HttpExchange exchange, final Map<String, Object> data) throws IOException {
+        respondJson(exchange, Map.of("data", data));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -15,7 +15,7 @@ class ShopifyTest {
 
     @Test
     void testUpdateWebsite() throws IOException {
-        ProductSource productSource = ProductSource
+        try (ProductSource productSource = ProductSource
                 .from(MultiCraft.class)
                 .onNew(newProduct -> {
                     logger.info("New Product Found " + newProduct);
@@ -23,10 +23,11 @@ class ShopifyTest {
                 .onModified(updatedProduct -> {
                     logger.info("Product Modified " + updatedProduct);
                 })
-                .build();
+                .build()) {
 
-        // new Shopify(productSource).createCollectionMappings();
-        new Shopify(productSource).export();
+            // Shopify.from(productSource).build().createCollectionMappings();
+            Shopify.from(productSource).build().export();
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package ca.dollareh.pim.integration;
+
+import ca.dollareh.pim.model.Product;
+import ca.dollareh.pim.source.ProductSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Product Source with its own workspace, so tests never touch a real catalog.
+ */
+public class StandInSource extends ProductSource {
+
+    public StandInSource(final Consumer<Product> newProductConsumer,
+                         final Consumer<Product> modifiedProductConsumer) {
+        super(newProductConsumer, modifiedProductConsumer);
+    }
+
+    @Override
+    protected void login() {
+    }
+
+    @Override
+    protected void logout() {
+    }
+
+    @Override
+    protected void browse() {
+    }
+
+    @Override
+    protected File downloadAsset(final String assetUrl) {
+        return getAssetFile(assetUrl);
+    }
+
+    /**
+     * Deletes everything the tests wrote for this source.
+     * Every instance has to be closed first.
+     */
+    static void cleanWorkspace() throws IOException {
+        for (Path path : List.of(Path.of("workspace/extracted/" + StandInSource.class.getSimpleName()),
+                Path.of("workspace/enrichment/" + StandInSource.class.getSimpleName()),
+                Path.of("workspace/export/Shopify/" + StandInSource.class.getSimpleName()),
+                Path.of("workspace/catalog/" + StandInSource.class.getSimpleName() + ".mv.db"),
+                Path.of("workspace/catalog/" + StandInSource.class.getSimpleName() + ".trace.db"))) {
+            if (Files.exists(path)) {
+                try (Stream<Path> paths = Files.walk(path)) {
+                    for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(p);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ca.dollareh.pim.source;
+
+import com.sun.net.httpserver.HttpServer;
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AssetDownloaderTest {
+
+    private final Path directory = Path.of("workspace/extracted/AssetDownloaderTest");
+
+    private final byte[] image = new byte[6 * 1024 * 1024];
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        new Random(42).nextBytes(image);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.jpg", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, image.length);
+            exchange.getResponseBody().write(image);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.stop(0);
+        if (Files.exists(directory)) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testStreamsAssetLargerThanPageLimit() throws IOException {
+        Connection session = Jsoup.newSession()
+                .maxBodySize(5 * 1024 * 1024);
+
+        File file = AssetDownloader.save(session
+                        .newRequest("http://127.0.0.1:" + server.getAddress().getPort() + "/image.jpg")
+                        .ignoreContentType(true)
+                        .maxBodySize(0)
+                        .execute(),
+                directory.resolve("images/image.jpg").toFile());
+
+        assertArrayEquals(image, Files.readAllBytes(file.toPath()));
+
+        // Only the renamed file is left
+        try (Stream<Path> files = Files.list(directory.resolve("images"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void testBoundsParallelism() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        try (AssetDownloader assetDownloader = new AssetDownloader(2)) {
+            List<CompletableFuture<File>> downloads = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                downloads.add(assetDownloader.submit("/" + i + ".jpg", assetUrl -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    inFlight.decrementAndGet();
+                    return directory.resolve(assetUrl.substring(1)).toFile();
+                }));
+            }
+
+            assertEquals("9.jpg", downloads.getLast().join().getName());
+        }
+
+        assertEquals(2, maxInFlight.get());
+    }
+}
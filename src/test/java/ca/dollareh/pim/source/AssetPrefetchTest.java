@@ -0,0 +1,111 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.model.Product;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AssetPrefetchTest {
+
+    private static final int PRODUCTS = 20;
+
+    /**
+     * Source whose slow downloads record whether its session was logged in.
+     */
+    public static class AssetSource extends ProductSource {
+
+        private final Queue<Boolean> downloadsLoggedIn = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean loggedIn;
+
+        public AssetSource(final Consumer<Product> newProductConsumer,
+                           final Consumer<Product> modifiedProductConsumer) {
+            super(newProductConsumer, modifiedProductConsumer);
+        }
+
+        @Override
+        protected void login() {
+            loggedIn = true;
+        }
+
+        @Override
+        protected void logout() {
+            loggedIn = false;
+        }
+
+        @Override
+        protected void browse() throws IOException {
+            discover();
+        }
+
+        void discover() throws IOException {
+            for (int i = 0; i < PRODUCTS; i++) {
+                onProductDiscovery(List.of("art"), new Product("AB" + i, "Brush " + i, "Brush Set", null, 12,
+                        3.56f, null, new String[]{"/images/AB" + i + ".png"}));
+            }
+        }
+
+        @Override
+        protected File downloadAsset(final String assetUrl) throws IOException {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            downloadsLoggedIn.add(loggedIn);
+            File assetFile = getAssetFile(assetUrl);
+            Files.createDirectories(assetFile.toPath().getParent());
+            Files.writeString(assetFile.toPath(), assetUrl);
+            return assetFile;
+        }
+    }
+
+    private final AssetSource productSource = (AssetSource) ProductSource.from(AssetSource.class).build();
+
+    @AfterEach
+    void close() throws IOException {
+        productSource.close();
+        for (Path path : List.of(Path.of("workspace/extracted/AssetSource"),
+                Path.of("workspace/catalog/AssetSource.mv.db"),
+                Path.of("workspace/catalog/AssetSource.trace.db"))) {
+            if (Files.exists(path)) {
+                try (Stream<Path> paths = Files.walk(path)) {
+                    for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(p);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDownloadsPrefetchedAssetsBeforeLogout() throws Exception {
+        productSource.extraxt();
+
+        assertEquals(PRODUCTS, productSource.downloadsLoggedIn.size());
+        assertTrue(productSource.downloadsLoggedIn.stream().allMatch(loggedIn -> loggedIn));
+    }
+
+    @Test
+    void testCloseCompletesQueuedDownloads() throws IOException {
+        productSource.discover();
+        productSource.close();
+
+        assertTrue(IntStream.range(0, PRODUCTS).allMatch(i ->
+                productSource.getAssetFile("/images/AB" + i + ".png").exists()));
+    }
+}
@@ -0,0 +1,143 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.catalog.CatalogStore;
+import ca.dollareh.pim.model.Product;
+import org.jsoup.HttpStatusException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrawlFrontierTest {
+
+    private final Path databasePath = Path.of("workspace/catalog/CrawlFrontierTest");
+
+    private CatalogStore catalogStore;
+
+    @BeforeEach
+    void open() {
+        catalogStore = new CatalogStore(databasePath);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        catalogStore.close();
+        Files.deleteIfExists(Path.of(databasePath + ".mv.db"));
+        Files.deleteIfExists(Path.of(databasePath + ".trace.db"));
+    }
+
+    @Test
+    void testResumesInterruptedCrawl() {
+        CrawlFrontier frontier = new CrawlFrontier(catalogStore);
+
+        assertEquals(new CrawlFrontier.Pending(List.of(List.of()), List.of()), frontier.pending());
+
+        CrawlFrontier.Pending pending = frontier.expand(List.of(),
+                List.of("AB020"),
+                List.of(List.of("art"), List.of("beads")));
+
+        assertEquals(List.of(List.of("art"), List.of("beads")), pending.categories());
+        assertEquals(List.of(new CrawlFrontier.Sku("AB020", List.of())), pending.skus());
+
+        frontier.expand(List.of("art"), List.of("AB020", "AB021"), List.of(List.of("art", "brushes")));
+        frontier.fetched(new CrawlFrontier.Sku("AB020", List.of()));
+
+        // The crawl stops here, the next one picks it up
+        CrawlFrontier resumed = new CrawlFrontier(catalogStore);
+
+        assertEquals(frontier.crawlId(), resumed.crawlId());
+        assertEquals(new CrawlFrontier.Pending(
+                List.of(List.of("art", "brushes"), List.of("beads")),
+                List.of(new CrawlFrontier.Sku("AB020", List.of("art")), new CrawlFrontier.Sku("AB021", List.of("art")))),
+                resumed.pending());
+        assertTrue(resumed.isFetched("AB020"));
+        assertFalse(resumed.isFetched("AB021"));
+
+        // Categories already in the crawl are not scheduled twice
+        assertEquals(List.of(), resumed.expand(List.of("beads"), List.of(), List.of(List.of("art"))).categories());
+
+        resumed.complete();
+
+        CrawlFrontier next = new CrawlFrontier(catalogStore);
+
+        assertNotEquals(frontier.crawlId(), next.crawlId());
+        assertEquals(new CrawlFrontier.Pending(List.of(List.of()), List.of()), next.pending());
+    }
+
+    @Test
+    void testAbandonsFailingEntries() {
+        CrawlFrontier frontier = new CrawlFrontier(catalogStore);
+
+        frontier.expand(List.of(), List.of("AB020"), List.of(List.of("art")));
+
+        CrawlFrontier.Sku sku = new CrawlFrontier.Sku("AB020", List.of());
+        IOException timeout = new SocketTimeoutException("Read timed out");
+
+        for (int i = 1; i < CrawlFrontier.MAX_ATTEMPTS; i++) {
+            assertTrue(frontier.failed(sku, timeout));
+        }
+        assertFalse(frontier.failed(sku, timeout));
+
+        // A category which is gone is abandoned at once
+        assertFalse(frontier.failed(List.of("art"),
+                new HttpStatusException("HTTP error fetching URL", 404, "https://www.multicraft.ca/en/brand/subbrands?code=art")));
+
+        // Nothing is left to fetch, so the resumed crawl completes
+        CrawlFrontier resumed = new CrawlFrontier(catalogStore);
+
+        assertEquals(new CrawlFrontier.Pending(List.of(), List.of()), resumed.pending());
+        assertFalse(resumed.isFetched("AB020"));
+    }
+
+    @Test
+    void testFetchesSharedSkuOnce() throws IOException, URISyntaxException {
+        CrawlFrontier frontier = new CrawlFrontier(catalogStore);
+
+        AtomicInteger fetches = new AtomicInteger();
+        Set<Product> products = ConcurrentHashMap.newKeySet();
+
+        try (CrawlScheduler scheduler = new CrawlScheduler(4, 0)) {
+            for (int i = 0; i < 10; i++) {
+                scheduler.submit(() -> products.add(frontier.fetchOnce("AB020", () -> {
+                    fetches.incrementAndGet();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new Product("AB020", "Brush", "Brush Set", null, 12, 3.56f, null, new String[0]);
+                })));
+            }
+            scheduler.await();
+        }
+
+        assertEquals(1, fetches.get());
+        assertEquals(1, products.size());
+    }
+
+    @Test
+    void testRetriesFailedFetch() throws IOException {
+        CrawlFrontier frontier = new CrawlFrontier(catalogStore);
+
+        assertThrows(IOException.class, () -> frontier.fetchOnce("AB020", () -> {
+            throw new IOException("timeout");
+        }));
+        assertEquals("AB020", frontier.fetchOnce("AB020",
+                () -> new Product("AB020", "Brush", "Brush Set", null, 12, 3.56f, null, new String[0])).code());
+    }
+}
@@ -0,0 +1,78 @@
+package ca.dollareh.pim.source;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrawlSchedulerTest {
+
+    private final AtomicInteger fetched = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Test
+    void testCrawlsTreeWithinHostLimit() throws IOException, URISyntaxException {
+        try (CrawlScheduler scheduler = new CrawlScheduler(3, 0)) {
+            scheduler.submit(() -> browse(scheduler, 0));
+            scheduler.await();
+        }
+
+        // 1 + 4 + 16 + 64 categories
+        assertEquals(85, fetched.get());
+        assertEquals(3, maxInFlight.get());
+    }
+
+    @Test
+    void testPacesRequests() throws IOException, URISyntaxException {
+        long start = System.nanoTime();
+
+        try (CrawlScheduler scheduler = new CrawlScheduler(10, 50)) {
+            for (int i = 0; i < 11; i++) {
+                scheduler.submit(() -> scheduler.fetch("https://example.com/", fetched::incrementAndGet));
+            }
+            scheduler.await();
+        }
+
+        // 11 requests at 50 per second span at least 200 ms
+        assertEquals(11, fetched.get());
+        assertTrue(System.nanoTime() - start >= 190_000_000L);
+    }
+
+    @Test
+    void testRethrowsFailure() {
+        try (CrawlScheduler scheduler = new CrawlScheduler(3, 0)) {
+            scheduler.submit(() -> {
+                throw new IOException("timeout");
+            });
+            assertEquals("timeout", assertThrows(IOException.class, scheduler::await).getMessage());
+        }
+    }
+
+    private void browse(final CrawlScheduler scheduler, final int depth) throws IOException {
+        scheduler.fetch("https://example.com/" + depth, () -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            inFlight.decrementAndGet();
+            return fetched.incrementAndGet();
+        });
+
+        if (depth < 3) {
+            for (int i = 0; i < 4; i++) {
+                scheduler.submit(() -> browse(scheduler, depth + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ca.dollareh.pim.source;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jsoup.Connection;
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpCacheTest {
+
+    private final Path directory = Path.of("workspace/cache/HttpCacheTest");
+
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+
+    private final Connection session = Jsoup.newSession();
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::onPage);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.stop(0);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void testServesNotModifiedFromDisk() throws IOException {
+        HttpCache httpCache = new HttpCache(directory, 1024 * 1024);
+
+        assertEquals("Brushes", httpCache.get(session, url("/brushes")).title());
+        assertEquals("Brushes", httpCache.get(session, url("/brushes")).title());
+
+        // A new instance finds the entries of the previous one
+        assertEquals("Brushes", new HttpCache(directory, 1024 * 1024).get(session, url("/brushes")).title());
+
+        assertEquals(List.of(200, 304, 304), statuses);
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() throws IOException {
+        // Entries of a, b and c are the same size
+        HttpCache probe = new HttpCache(directory.resolve("probe"), Long.MAX_VALUE);
+        probe.get(session, url("/a"));
+        long entrySize = probe.size();
+
+        HttpCache httpCache = new HttpCache(directory, entrySize * 2);
+
+        httpCache.get(session, url("/a"));
+        httpCache.get(session, url("/b"));
+        httpCache.get(session, url("/a"));
+        httpCache.get(session, url("/c"));
+
+        assertTrue(httpCache.size() <= entrySize * 2);
+
+        statuses.clear();
+
+        httpCache.get(session, url("/a"));
+        httpCache.get(session, url("/b"));
+
+        // a was used after b, so b was evicted for c
+        assertEquals(List.of(304, 200), statuses);
+    }
+
+    @Test
+    void testConcurrentStoresKeepOneWholeEntry() throws Exception {
+        HttpCache httpCache = new HttpCache(directory, 1024 * 1024);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<String>> titles = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                titles.add(executor.submit(() -> httpCache.get(session, url("/brushes")).title()));
+            }
+            for (Future<String> title : titles) {
+                assertEquals("Brushes", title.get());
+            }
+        }
+
+        try (Stream<Path> paths = Files.list(directory)) {
+            assertEquals(1, paths.count());
+        }
+
+        assertEquals("Brushes", httpCache.get(session, url("/brushes")).title());
+        assertEquals(304, statuses.getLast());
+    }
+
+    private String url(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static String page(final String path) {
+        return "<html><head><title>" + (path.equals("/brushes") ? "Brushes" : path.substring(1).repeat(10))
+                + "</title></head><body></body></html>";
+    }
+
+    private void onPage(final HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String etag = "\"" + path.hashCode() + "\"";
+
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            statuses.add(200);
+            byte[] body = page(path).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        exchange.close();
+    }
+}
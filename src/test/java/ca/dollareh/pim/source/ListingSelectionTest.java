@@ -0,0 +1,100 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.model.Product;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ListingSelectionTest {
+
+    /**
+     * Source with nothing to crawl, to drive the listing selection directly.
+     */
+    public static class ListingSource extends ProductSource {
+
+        public ListingSource(final Consumer<Product> newProductConsumer,
+                             final Consumer<Product> modifiedProductConsumer) {
+            super(newProductConsumer, modifiedProductConsumer);
+        }
+
+        @Override
+        protected void login() {
+        }
+
+        @Override
+        protected void logout() {
+        }
+
+        @Override
+        protected void browse() {
+        }
+
+        @Override
+        protected File downloadAsset(final String assetUrl) {
+            return getAssetFile(assetUrl);
+        }
+    }
+
+    private final ProductSource productSource = ProductSource.from(ListingSource.class).build();
+
+    @AfterEach
+    void close() throws IOException {
+        productSource.close();
+        Files.deleteIfExists(Path.of("workspace/catalog/ListingSource.mv.db"));
+        Files.deleteIfExists(Path.of("workspace/catalog/ListingSource.trace.db"));
+    }
+
+    @Test
+    void testFetchesNewAndChangedCards() throws IOException {
+        // With the default full refresh fraction of 0.1, one code out of 10 buckets is refreshed today
+        long refreshDay = LocalDate.now().toEpochDay() % 10;
+        List<String> codes = IntStream.range(0, 100)
+                .mapToObj(i -> "AB0" + i)
+                .filter(code -> Math.floorMod(code.hashCode(), 10) != refreshDay)
+                .limit(2)
+                .toList();
+        String refreshed = IntStream.range(0, 100)
+                .mapToObj(i -> "AB0" + i)
+                .filter(code -> Math.floorMod(code.hashCode(), 10) == refreshDay)
+                .findFirst()
+                .orElseThrow();
+
+        String unchanged = codes.get(0);
+        String changed = codes.get(1);
+
+        Map<String, String> cards = new LinkedHashMap<>();
+        cards.put(unchanged, unchanged + " Brush $3.56");
+        cards.put(changed, changed + " Brush $3.56");
+        cards.put(refreshed, refreshed + " Brush $3.56");
+
+        assertEquals(List.of(unchanged, changed, refreshed), productSource.selectListings(List.of("art"), cards));
+
+        for (String code : cards.keySet()) {
+            productSource.onProductDiscovery(List.of("art"),
+                    new Product(code, "Brush", "Brush Set", null, 12, 3.56f, null, new String[0]));
+            productSource.onListingFetched(code);
+        }
+
+        cards.put(changed, changed + " Brush $2.99");
+
+        assertEquals(List.of(changed, refreshed), productSource.selectListings(List.of("sale"), cards));
+
+        // The changed listing was not fetched, so it is selected again
+        assertEquals(List.of(changed, refreshed), productSource.selectListings(List.of("sale"), cards));
+
+        // Listings which are not fetched still record their category
+        assertEquals(List.of(List.of("art"), List.of("sale")), productSource.getCollection(unchanged));
+    }
+}
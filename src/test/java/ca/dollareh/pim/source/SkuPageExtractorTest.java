@@ -0,0 +1,77 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.model.Product;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SkuPageExtractorTest {
+
+    private static final String SKU_PAGE = """
+            <html>
+            <head><title>AB01</title><script>var sku = "AB01";</script></head>
+            <body>
+              <nav><ul><li><a href="/en/brand">Brands</a></li></ul></nav>
+              <ul id="img-previews">
+                <li><img src="/images/AB01-1.jpg?w=80"></li>
+                <li><img src="/images/AB01-2.jpg"></li>
+              </ul>
+              <h1 class="details-desc">Brush   <b>Set</b></h1>
+              <div class="details-blurb"><p>Ten brushes</p><p>for acrylics</p></div>
+              <div class="details-brief">
+                <div class="row"><span class="hdr">unit price</span><span class="vlu">$12.50 $9.99</span></div>
+                <div class="row"><span class="hdr"> pack </span><span class="vlu">12</span></div>
+                <div class="row"><span class="hdr">UPC</span><span class="vlu"> 0627843412345 </span></div>
+                <div class="row"><span class="hdr">brand</span><span class="vlu">Multicraft</span></div>
+              </div>
+            </body>
+            </html>
+            """;
+
+    @Test
+    void testExtractsSkuPage() throws IOException {
+        Product product = extract(SKU_PAGE);
+
+        assertEquals("AB01", product.code());
+        assertEquals("Brush Set", product.title());
+        assertEquals("Ten brushes for acrylics", product.description());
+        assertEquals(12.50f, product.price());
+        assertEquals(9.99f, product.discount());
+        assertEquals(12, product.inventryQuantity());
+        assertEquals(627843412345L, product.upc());
+        assertArrayEquals(new String[]{"/images/AB01-1.jpg", "/images/AB01-2.jpg"}, product.imageUrls());
+    }
+
+    @Test
+    void testExtractsSparseSkuPage() throws IOException {
+        Product product = extract("""
+                <html><body>
+                  <div class="details-brief">
+                    <div class="row"><span class="hdr">unit price</span><span class="vlu">$1,234.5</span></div>
+                    <div class="row"><span class="hdr">UPC</span><span class="vlu"> </span></div>
+                  </div>
+                </body></html>
+                """);
+
+        assertNull(product.title());
+        assertNull(product.description());
+        assertNull(product.upc());
+        assertEquals(1234.5f, product.price());
+        assertEquals(0f, product.discount());
+        assertEquals(0, product.inventryQuantity());
+        assertEquals(0, product.imageUrls().length);
+    }
+
+    private static Product extract(final String page) throws IOException {
+        return SkuPageExtractor.extract("AB01",
+                new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)),
+                null,
+                MultiCraft.BASE_URL + "/en/brand/sku?id=AB01");
+    }
+}
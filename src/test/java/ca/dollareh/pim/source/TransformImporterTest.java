@@ -0,0 +1,85 @@
+package ca.dollareh.pim.source;
+
+import ca.dollareh.pim.model.Product;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransformImporterTest {
+
+    private final Path workbookPath = Path.of("workspace/transform/TransformImporterTest.xlsx");
+
+    private final ProductSource productSource = ProductSource.from(ListingSelectionTest.ListingSource.class).build();
+
+    @AfterEach
+    void close() throws IOException {
+        productSource.close();
+        Files.deleteIfExists(workbookPath);
+        Files.deleteIfExists(Path.of("workspace/catalog/ListingSource.mv.db"));
+        Files.deleteIfExists(Path.of("workspace/catalog/ListingSource.trace.db"));
+    }
+
+    @Test
+    void testImportsVendorSheet() throws IOException {
+        writeWorkbook(new Object[][]{
+                {"#", "Code", "Description", "Qty", "Price"},
+                {1, "AB01", "Brush Set", 12, 3.5},
+                {2, " AB02 ", "Glue", 6, 1.25},
+                {3, "AB01", "Brush Set Again", 24, 4.0},
+                {4, "", "After the last product", 1, 1.0},
+                {5, "AB03", "Never read", 1, 1.0}
+        });
+
+        int imported = TransformImporter.from(productSource)
+                .columns(Map.of("title", 2, "inventryQuantity", 3, "price", 4))
+                .batchSize(1)
+                .build()
+                .importSheet(workbookPath);
+
+        assertEquals(2, imported);
+
+        List<Product> transforms = productSource.getCatalogStore().getTransforms();
+
+        assertEquals(List.of("AB01", "AB02"), transforms.stream().map(Product::code).toList());
+
+        // The first row of a duplicated code wins
+        Product brushes = transforms.getFirst();
+        assertEquals("Brush Set", brushes.title());
+        assertEquals(12, brushes.inventryQuantity());
+        assertEquals(3.5f, brushes.price());
+
+        assertEquals(1.25f, transforms.get(1).price());
+    }
+
+    private void writeWorkbook(final Object[][] rows) throws IOException {
+        Files.createDirectories(workbookPath.getParent());
+
+        try (Workbook workbook = new XSSFWorkbook();
+             FileOutputStream outputStream = new FileOutputStream(workbookPath.toFile())) {
+            Sheet sheet = workbook.createSheet();
+            for (int i = 0; i < rows.length; i++) {
+                Row row = sheet.createRow(i);
+                for (int j = 0; j < rows[i].length; j++) {
+                    if (rows[i][j] instanceof Number number) {
+                        row.createCell(j).setCellValue(number.doubleValue());
+                    } else {
+                        row.createCell(j).setCellValue((String) rows[i][j]);
+                    }
+                }
+            }
+            workbook.write(outputStream);
+        }
+    }
+}